@@ -1,17 +1,37 @@
 import java.io.*;
 import java.net.*;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Client {
     // Scanner for reading user input from the console
     private static final Scanner scanner = new Scanner(System.in);
-    // Socket to establish connection with the server
-    private static Socket socket;
-    private static PrintWriter out;
-    private static BufferedReader in;
+    // Connection to the server for the interactive session, replaced when it drops and the client reconnects
+    private static volatile Connection connection;
+    // Wait before the first reconnect attempt, doubled after every failed one up to the longest wait
+    private static final long FIRST_RECONNECT_DELAY_MS = 500;
+    private static final long MAX_RECONNECT_DELAY_MS = 30_000;
+    private static final String SESSION_PREFIX = "Session token: ";
+    private static final Pattern MESSAGE_ID = Pattern.compile("^Message ID: (\\d+),");
+    // What the client needs to resume its session after a dropped connection: the server's token and the newest
+    // message it has seen, so the server only sends what was missed
+    private static volatile String sessionToken;
+    private static volatile int lastMessageId;
+    // Set once the user exits, so a closed connection is not reconnected
+    private static volatile boolean exiting;
 
     public static void main(String[] args) {
         try {
+            // "--load=true" runs the headless load generator instead of the console menu (see LoadGenerator)
+            ServerConfig.applyArgs(args);
+            if (ServerConfig.getBoolean("load", false)) {
+                LoadGenerator.fromConfig().run();
+                return;
+            }
+
             // Continuous loop to provide menu options
             while (true) {
                 System.out.println("Bulletin Board Client");
@@ -53,12 +73,14 @@ public class Client {
         int port = portStr.isEmpty() ? 5000 : Integer.parseInt(portStr); // Default port 5000
 
         // Create socket connection to the server
-        socket = new Socket(address, port);
-        out = new PrintWriter(socket.getOutputStream(), true);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        connection = new Connection(address, port);
+        exiting = false;
+        sessionToken = null;
+        lastMessageId = 0;
 
-        // Start a thread to receive server messages
-        new Thread(Client::receiveMessages).start();
+        // Start a thread to receive server messages, reconnecting if the connection drops
+        String host = address;
+        connection.receive(Client::onServerLine, () -> reconnect(host, port));
 
         // Enter interactive mode for sending commands
         interactiveMode();
@@ -72,26 +94,134 @@ public class Client {
         while (true) {
             // Read user input
             String command = scanner.nextLine();
-            // Send command to server
-            out.println(command);
 
             // Check for exit condition
             if (command.equalsIgnoreCase("%exit")) {
+                exiting = true;
+                connection.send(command);
                 break;
             }
+            if (!connection.isOpen()) {
+                System.out.println("Not connected, still trying to reconnect. Your command was not sent.");
+                continue;
+            }
+            // Send command to server
+            connection.send(command);
         }
     }
 
-    // Method to continuously receive and display messages from the server
-    private static void receiveMessages() {
-        try {
-            // Read messages from the server until connection is closed
-            String message;
-            while ((message = in.readLine()) != null) {
-                System.out.println(message);
+    // Method to show a line from the server, noting the session token and the newest message ID it mentions
+    private static void onServerLine(String line) {
+        System.out.println(line);
+        if (line.startsWith(SESSION_PREFIX)) {
+            int end = line.indexOf(' ', SESSION_PREFIX.length());
+            sessionToken = line.substring(SESSION_PREFIX.length(), end < 0 ? line.length() : end);
+            return;
+        }
+        Matcher id = MESSAGE_ID.matcher(line);
+        if (id.find()) {
+            lastMessageId = Math.max(lastMessageId, Integer.parseInt(id.group(1)));
+        }
+    }
+
+    // Method to reconnect after the connection dropped, waiting longer after every failed attempt
+    // With a session token the new connection resumes the session, so only missed messages are sent
+    private static void reconnect(String address, int port) {
+        long delay = FIRST_RECONNECT_DELAY_MS;
+        while (!exiting) {
+            System.out.println("Connection lost. Reconnecting in " + delay / 1000.0 + " seconds...");
+            try {
+                // Jitter keeps clients dropped by the same outage from all reconnecting at once
+                Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Connection next = new Connection(address, port);
+                if (sessionToken != null) {
+                    next.send("%resume " + sessionToken + " " + lastMessageId);
+                }
+                connection = next;
+                next.receive(Client::onServerLine, () -> reconnect(address, port));
+                System.out.println("Reconnected.");
+                return;
+            } catch (IOException e) {
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MS);
             }
-        } catch (IOException e) {
-            System.out.println("Disconnected from server.");
+        }
+    }
+
+    // One connection to the server, shared by the interactive client and the load generator
+    static final class Connection implements Closeable {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        // Set once the server side has closed or the link broke
+        private volatile boolean lost;
+
+        Connection(String address, int port) throws IOException {
+            socket = new Socket(address, port);
+            // Commands are single short lines, send each one straight away
+            socket.setTcpNoDelay(true);
+            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
+
+        // Method to send one command line
+        void send(String command) {
+            out.println(command);
+        }
+
+        // Method to start a thread that hands every line from the server to handler until the connection closes
+        Thread receive(Consumer<String> handler) {
+            return receive(handler, null);
+        }
+
+        // Same, then runs onLost on that thread if the connection ended without this side closing it
+        Thread receive(Consumer<String> handler, Runnable onLost) {
+            Thread receiver = new Thread(() -> {
+                receiveMessages(handler);
+                lost = true;
+                if (onLost != null && !socket.isClosed()) {
+                    closeQuietly();
+                    onLost.run();
+                }
+            });
+            receiver.setDaemon(true);
+            receiver.start();
+            return receiver;
+        }
+
+        // Method to continuously receive messages from the server
+        private void receiveMessages(Consumer<String> handler) {
+            try {
+                // Read messages from the server until connection is closed
+                String message;
+                while ((message = in.readLine()) != null) {
+                    handler.accept(message);
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.out.println("Disconnected from server.");
+                }
+            }
+        }
+
+        boolean isOpen() {
+            return !lost && !socket.isClosed();
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken, nothing more to do
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
         }
     }
 }
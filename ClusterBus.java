@@ -0,0 +1,468 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Helper type: relays posts, joins and leaves between Server nodes so every group spans the cluster
+// Each node keeps one outgoing connection to every peer for its own events and reads the peers' events
+// from their connections to it; events are queued per peer and written by one thread each,
+// so publishing never waits on the network
+// Whenever a link comes up, the peer says which of our posts it already has; we send our groups and members,
+// then resend the rest of the posts, so posts missed while the link was down, or while the peer was restarting,
+// still reach it
+public class ClusterBus {
+    // Event types, the first byte of every frame
+    private static final byte HELLO = 0;
+    private static final byte POST = 1;
+    private static final byte JOIN = 2;
+    // Join sent as part of the membership snapshot after connecting, applied without a notice
+    private static final byte MEMBER = 3;
+    private static final byte LEAVE = 4;
+    private static final byte DISCONNECT = 5;
+    // Sent on idle links so a peer that restarted is noticed and gets our membership again
+    private static final byte HEARTBEAT = 6;
+    // Groups created and deleted by users; creations are also part of the snapshot, ahead of the members and posts
+    private static final byte GROUP_CREATE = 7;
+    private static final byte GROUP_DELETE = 8;
+    // Reply to HELLO, the only frame sent back on a link: the newest post from the connecting node this node has
+    private static final byte SYNC = 9;
+
+    // Events held for a peer while its connection is busy; more than this and the link is dropped and
+    // set up again, which resends the posts and membership the peer missed
+    private static final int MAX_QUEUED_EVENTS = 65536;
+    // Longest frame or string accepted from a peer; a post is one client line, far below this, so anything
+    // longer means a corrupt or hostile link, which is dropped like any broken one
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final long HEARTBEAT_MILLIS = 1000;
+    // How long a connecting node waits for the SYNC reply
+    private static final int SYNC_TIMEOUT_MILLIS = 30_000;
+    // Posts are relayed once committed, and commits of concurrent posts can finish out of ID order; resending
+    // this many of our IDs below the peer's newest covers posts that were still in flight when the link broke
+    private static final int RESEND_OVERLAP = 8192;
+
+    // What the local server does with events from other nodes
+    public interface Listener {
+        void onRemotePost(Message message);
+
+        // announce is false for members listed in a node's snapshot, who joined before the link came up
+        void onRemoteJoin(String username, Group group, boolean announce);
+
+        void onRemoteLeave(String username, Group group);
+
+        void onRemoteDisconnect(String username);
+
+        // Returns false if the group clashes with one this node already has
+        boolean onRemoteGroupCreated(Group group);
+
+        void onRemoteGroupDeleted(Group group, String username);
+
+        // Username -> IDs of the groups they belong to, for every user of this node, including parked sessions
+        Map<String, List<String>> localMembership();
+
+        // Every group users have created, so a peer that joins late learns about them
+        List<Group> createdGroups();
+
+        // Newest post held here that the node whose IDs have the given residue made, or 0 if there is none
+        int newestPostFrom(int idResidue);
+
+        // Method to hand every post this node made with an ID above afterId to sink, in ID order
+        void forEachOwnPostAfter(int afterId, Consumer<Message> sink);
+    }
+
+    private final String nodeId;
+    private final int port;
+    private final List<Peer> peers = new ArrayList<>();
+    private final Function<String, Group> groupsById;
+    private final Listener listener;
+    // Members on other nodes: node ID -> group ID -> usernames
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>> remoteMembers = new ConcurrentHashMap<>();
+    // Current inbound link per node, so a stale link closing does not wipe a newer link's members
+    private final ConcurrentHashMap<String, Socket> inboundLinks = new ConcurrentHashMap<>();
+
+    public ClusterBus(String nodeId, int port, List<String> peerAddresses, Function<String, Group> groupsById, Listener listener) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.groupsById = groupsById;
+        this.listener = listener;
+        for (String address : peerAddresses) {
+            int split = address.lastIndexOf(':');
+            if (split < 0) {
+                throw new IllegalArgumentException("Invalid peer '" + address + "'. Format: <host>:<port>");
+            }
+            peers.add(new Peer(address.substring(0, split), Integer.parseInt(address.substring(split + 1))));
+        }
+    }
+
+    // Method to start accepting peers and connecting to them; returns once the bus port is bound
+    public void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        daemon("cluster-accept", () -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    daemon("cluster-in-" + socket.getPort(), () -> readLink(socket));
+                } catch (IOException e) {
+                    System.out.println("Error accepting cluster peer: " + e.getMessage());
+                }
+            }
+        });
+        for (Peer peer : peers) {
+            daemon("cluster-out-" + peer.host + ":" + peer.port, peer);
+        }
+    }
+
+    public void publishPost(Message message) {
+        publish(postFrame(message));
+    }
+
+    public void publishJoin(String username, Group group) {
+        publish(membershipFrame(JOIN, username, group.getId()));
+    }
+
+    public void publishLeave(String username, Group group) {
+        publish(membershipFrame(LEAVE, username, group.getId()));
+    }
+
+    public void publishDisconnect(String username) {
+        Frame frame = new Frame(DISCONNECT);
+        frame.writeString(username);
+        publish(frame.toBytes());
+    }
+
+    public void publishGroupCreate(Group group) {
+        publish(groupCreateFrame(group));
+    }
+
+    public void publishGroupDelete(Group group, String username) {
+        forgetGroup(group.getId());
+        publish(membershipFrame(GROUP_DELETE, username, group.getId()));
+    }
+
+    // Method to list the members of a group connected to other nodes
+    public List<String> remoteMembers(String groupId) {
+        List<String> usernames = new ArrayList<>();
+        for (Map<String, Set<String>> groups : remoteMembers.values()) {
+            usernames.addAll(groups.getOrDefault(groupId, Collections.emptySet()));
+        }
+        return usernames;
+    }
+
+    // Every peer gets the same encoded frame
+    private void publish(byte[] frame) {
+        for (Peer peer : peers) {
+            peer.send(frame);
+        }
+    }
+
+    // Method to drop every remote member of a deleted group; the other nodes drop them without a leave event
+    private void forgetGroup(String groupId) {
+        for (Map<String, Set<String>> groups : remoteMembers.values()) {
+            groups.remove(groupId);
+        }
+    }
+
+    private static byte[] postFrame(Message message) {
+        Frame frame = new Frame(POST);
+        frame.writeInt(message.getId());
+        frame.writeLong(message.getPostDate().toEpochSecond(ZoneOffset.UTC));
+        frame.writeInt(message.getPostDate().getNano());
+        frame.writeString(message.getGroup().getId());
+        frame.writeString(message.getSender());
+        frame.writeString(message.getSubject());
+        frame.writeString(message.getContent());
+        return frame.toBytes();
+    }
+
+    private static byte[] groupCreateFrame(Group group) {
+        Frame frame = new Frame(GROUP_CREATE);
+        frame.writeString(group.getId());
+        frame.writeString(group.getName());
+        frame.writeString(group.getOwner());
+        return frame.toBytes();
+    }
+
+    private static byte[] membershipFrame(byte type, String username, String groupId) {
+        Frame frame = new Frame(type);
+        frame.writeString(username);
+        frame.writeString(groupId);
+        return frame.toBytes();
+    }
+
+    // Inbound link: apply every event from one peer, in order, until it disconnects
+    private void readLink(Socket socket) {
+        String peerId = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                byte[] body = new byte[readLength(in)];
+                in.readFully(body);
+                DataInputStream event = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = event.readByte();
+                if (type == HELLO) {
+                    peerId = readString(event);
+                    int idResidue = event.readInt();
+                    inboundLinks.put(peerId, socket);
+                    // The peer follows up with the posts we are missing and its full membership,
+                    // which replaces whatever we had
+                    remoteMembers.put(peerId, new ConcurrentHashMap<>());
+                    Frame sync = new Frame(SYNC);
+                    sync.writeInt(listener.newestPostFrom(idResidue));
+                    DataOutputStream reply = new DataOutputStream(socket.getOutputStream());
+                    writeFrame(reply, sync.toBytes());
+                    reply.flush();
+                    System.out.println("Cluster node " + peerId + " connected");
+                } else if (peerId == null) {
+                    throw new IOException("cluster peer sent events before saying hello");
+                } else {
+                    apply(peerId, type, event);
+                }
+            }
+        } catch (EOFException e) {
+            // Peer closed the link
+        } catch (IOException e) {
+            System.out.println("Cluster link" + (peerId == null ? "" : " from " + peerId) + " failed: " + e.getMessage());
+        } finally {
+            if (peerId != null && inboundLinks.remove(peerId, socket)) {
+                // Its clients are unreachable now; the snapshot on reconnect brings them back
+                remoteMembers.remove(peerId);
+                System.out.println("Cluster node " + peerId + " disconnected");
+            }
+        }
+    }
+
+    private void apply(String peerId, byte type, DataInputStream event) throws IOException {
+        Map<String, Set<String>> members = remoteMembers.computeIfAbsent(peerId, id -> new ConcurrentHashMap<>());
+        switch (type) {
+            case POST:
+                int id = event.readInt();
+                LocalDateTime postDate;
+                try {
+                    postDate = LocalDateTime.ofEpochSecond(event.readLong(), event.readInt(), ZoneOffset.UTC);
+                } catch (DateTimeException e) {
+                    throw new IOException("bad post date: " + e.getMessage());
+                }
+                Group postGroup = groupsById.apply(readString(event));
+                Message message = new Message(id, readString(event), readString(event), readString(event), postDate, postGroup);
+                if (postGroup != null) {
+                    listener.onRemotePost(message);
+                }
+                break;
+            case JOIN:
+            case MEMBER:
+                String joining = readString(event);
+                Group joined = groupsById.apply(readString(event));
+                if (joined != null
+                        && members.computeIfAbsent(joined.getId(), g -> ConcurrentHashMap.newKeySet()).add(joining)) {
+                    listener.onRemoteJoin(joining, joined, type == JOIN);
+                }
+                break;
+            case LEAVE:
+                String leaving = readString(event);
+                Group left = groupsById.apply(readString(event));
+                if (left != null && members.getOrDefault(left.getId(), Collections.emptySet()).remove(leaving)) {
+                    listener.onRemoteLeave(leaving, left);
+                }
+                break;
+            case DISCONNECT:
+                String disconnected = readString(event);
+                members.values().forEach(usernames -> usernames.remove(disconnected));
+                listener.onRemoteDisconnect(disconnected);
+                break;
+            case GROUP_CREATE:
+                Group created = new Group(readString(event), readString(event), readString(event));
+                if (groupsById.apply(created.getId()) == null && !listener.onRemoteGroupCreated(created)) {
+                    System.out.println("Ignoring group " + created.getId() + " from " + peerId + ": its name '"
+                        + created.getName() + "' is already taken here");
+                }
+                break;
+            case GROUP_DELETE:
+                String deleter = readString(event);
+                Group deleted = groupsById.apply(readString(event));
+                if (deleted != null) {
+                    forgetGroup(deleted.getId());
+                    listener.onRemoteGroupDeleted(deleted, deleter);
+                }
+                break;
+            case HEARTBEAT:
+                break;
+            default:
+                throw new IOException("unknown cluster event type " + type);
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Method to read a frame or string length, refusing one no peer would send before allocating for it
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("bad cluster frame length " + length);
+        }
+        return length;
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Outbound link to one peer, reconnecting until the server stops
+    private final class Peer implements Runnable {
+        private final String host;
+        private final int port;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(MAX_QUEUED_EVENTS);
+        // Events are only queued while connected; what the peer missed before that is resent on connect
+        private volatile boolean connected;
+        private volatile Socket socket;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void send(byte[] frame) {
+            if (connected && !queue.offer(frame)) {
+                // Nothing more is queued from here on; setting the link up again resends what the peer missed
+                connected = false;
+                System.out.println("Cluster peer " + host + ":" + port + " is falling behind, reconnecting to catch it up");
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // The writer thread notices the link is gone either way
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> batch = new ArrayList<>();
+            while (true) {
+                try (Socket socket = new Socket(host, port)) {
+                    this.socket = socket;
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    // Start queueing first: anything that changes while the snapshot is taken is also sent after it
+                    // The peer ignores posts it already has, so a post both resent and queued arrives once
+                    connected = true;
+                    writeFrame(out, helloFrame());
+                    out.flush();
+                    int newest = readSync(socket);
+                    // A node restarted without its journal would otherwise hand out IDs the peer already holds
+                    Message.advanceIdsPast(newest);
+                    // Groups go first: the peer drops a post to a group it has not heard of, and a group created
+                    // while the link was down would otherwise lose every post resent to it
+                    for (Group group : listener.createdGroups()) {
+                        writeFrame(out, groupCreateFrame(group));
+                    }
+                    for (Map.Entry<String, List<String>> member : listener.localMembership().entrySet()) {
+                        for (String groupId : member.getValue()) {
+                            writeFrame(out, membershipFrame(MEMBER, member.getKey(), groupId));
+                        }
+                    }
+                    try {
+                        listener.forEachOwnPostAfter(Math.max(0, newest - RESEND_OVERLAP * Message.idStride()), message -> {
+                            try {
+                                writeFrame(out, postFrame(message));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                    out.flush();
+
+                    // Write whatever is queued as one batch with a single flush
+                    byte[] heartbeat = new Frame(HEARTBEAT).toBytes();
+                    while (true) {
+                        byte[] first = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                        batch.add(first == null ? heartbeat : first);
+                        queue.drainTo(batch);
+                        for (byte[] frame : batch) {
+                            writeFrame(out, frame);
+                        }
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    // Peer not up yet or gone; retry below
+                } catch (InterruptedException e) {
+                    return;
+                }
+                connected = false;
+                queue.clear();
+                batch.clear();
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private byte[] helloFrame() {
+            Frame frame = new Frame(HELLO);
+            frame.writeString(nodeId);
+            frame.writeInt(Message.idResidue());
+            return frame.toBytes();
+        }
+
+        // Method to wait for the peer's reply to HELLO: the newest of our posts it already has
+        private int readSync(Socket socket) throws IOException {
+            socket.setSoTimeout(SYNC_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] body = new byte[readLength(in)];
+            in.readFully(body);
+            if (body.length < 5 || body[0] != SYNC) {
+                throw new IOException("cluster peer did not answer hello");
+            }
+            return new DataInputStream(new ByteArrayInputStream(body, 1, 4)).readInt();
+        }
+    }
+
+    // Builder for one event: the type byte followed by its fields, in DataInputStream's big-endian format
+    private static final class Frame extends ByteArrayOutputStream {
+        Frame(byte type) {
+            super(64);
+            write(type);
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeString(String value) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(encoded.length);
+            write(encoded, 0, encoded.length);
+        }
+
+        byte[] toBytes() {
+            return toByteArray();
+        }
+    }
+}
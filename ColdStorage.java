@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Function;
+
+// Helper type: second tier for message history
+// Messages evicted from memory are still in the journal; this reads them back on demand
+// and keeps the most recently re-read ones in a small LRU cache
+public class ColdStorage {
+    private final MessageJournal journal;
+    private final Function<String, Group> groupsById;
+    // Access-ordered map evicting its eldest entry, guarded by itself
+    private final Map<Integer, Message> cache;
+
+    public ColdStorage(MessageJournal journal, Function<String, Group> groupsById, int cacheEntries) {
+        this.journal = journal;
+        this.groupsById = groupsById;
+        this.cache = new LinkedHashMap<Integer, Message>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Message> eldest) {
+                return size() > cacheEntries;
+            }
+        };
+    }
+
+    // Method to get a recently re-read message without touching the disk, or null
+    public Message cached(int id) {
+        synchronized (cache) {
+            return cache.get(id);
+        }
+    }
+
+    // Method to read a message back from the journal and remember it for the next reader
+    public Message load(long location) throws IOException {
+        Message message = journal.read(location, groupsById);
+        synchronized (cache) {
+            cache.put(message.getId(), message);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,167 @@
+import java.util.Arrays;
+
+// Helper type: one client command line split into space-separated tokens in place
+// Tokens are kept as offsets into the line the engine already decoded, so recognising a command
+// and checking its arguments copies nothing; a token only becomes a String when a handler needs one
+// A ClientHandler reuses one instance for every line it receives
+public final class CommandLine {
+    // Which rate limit a command counts against, see RateLimits
+    public enum Limit {
+        // Commands that fan out to a group or change the board; joining and leaving count too, since they replay
+        // history, send presence notices to the group and are relayed to every cluster node
+        POSTS,
+        // Commands that read the board
+        READS,
+        // Commands that are cheap or only affect the client itself
+        NONE
+    }
+
+    // Every command the server understands, matched case-insensitively against the first token
+    public enum Command {
+        POST("%post", Limit.POSTS),
+        GROUPPOST("%grouppost", Limit.POSTS),
+        USERS("%users", Limit.READS),
+        GROUPUSERS("%groupusers", Limit.READS),
+        MESSAGE("%message", Limit.READS),
+        GROUPMESSAGE("%groupmessage", Limit.READS),
+        HISTORY("%history", Limit.READS),
+        SEARCH("%search", Limit.READS),
+        GROUPS("%groups", Limit.READS),
+        GROUPJOIN("%groupjoin", Limit.POSTS),
+        GROUPLEAVE("%groupleave", Limit.POSTS),
+        GROUPCREATE("%groupcreate", Limit.POSTS),
+        GROUPDELETE("%groupdelete", Limit.POSTS),
+        LEAVE("%leave", Limit.POSTS),
+        EXIT("%exit", Limit.NONE),
+        HELP("%help", Limit.NONE),
+        STATS("%stats", Limit.READS),
+        // Only valid as the first line of a connection, in place of a username
+        RESUME("%resume", Limit.NONE),
+        // Anything else
+        UNKNOWN("other", Limit.NONE);
+
+        // Commands grouped by name length, so a lookup only compares against names that could match
+        private static final Command[][] BY_LENGTH = new Command[32][];
+
+        static {
+            for (Command command : values()) {
+                if (command == UNKNOWN) {
+                    continue;
+                }
+                int length = command.text.length();
+                Command[] bucket = BY_LENGTH[length] == null ? new Command[0] : BY_LENGTH[length];
+                bucket = Arrays.copyOf(bucket, bucket.length + 1);
+                bucket[bucket.length - 1] = command;
+                BY_LENGTH[length] = bucket;
+            }
+        }
+
+        private final String text;
+        private final Limit limit;
+
+        Command(String text, Limit limit) {
+            this.text = text;
+            this.limit = limit;
+        }
+
+        public String text() {
+            return text;
+        }
+
+        public Limit limit() {
+            return limit;
+        }
+
+        private static Command lookup(String line, int start, int end) {
+            int length = end - start;
+            if (length >= BY_LENGTH.length || BY_LENGTH[length] == null) {
+                return UNKNOWN;
+            }
+            for (Command command : BY_LENGTH[length]) {
+                if (line.regionMatches(true, start, command.text, 0, length)) {
+                    return command;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    // The command plus up to three arguments; anything after the last one stays part of it (see rest)
+    private static final int MAX_TOKENS = 4;
+
+    private String line = "";
+    private final int[] starts = new int[MAX_TOKENS];
+    private final int[] ends = new int[MAX_TOKENS];
+    private int tokens;
+    private Command command = Command.UNKNOWN;
+
+    // Method to point at a new line and find its tokens
+    public void parse(String line) {
+        this.line = line;
+        tokens = 0;
+        int length = line.length();
+        int i = 0;
+        while (tokens < MAX_TOKENS) {
+            while (i < length && line.charAt(i) == ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            starts[tokens] = i;
+            while (i < length && line.charAt(i) != ' ') {
+                i++;
+            }
+            ends[tokens] = i;
+            tokens++;
+        }
+        command = tokens == 0 ? Command.UNKNOWN : Command.lookup(line, starts[0], ends[0]);
+    }
+
+    public Command command() {
+        return command;
+    }
+
+    // Number of arguments after the command, counting at most three
+    public int argCount() {
+        return Math.max(0, tokens - 1);
+    }
+
+    // Method to copy out one argument; index 1 is the first one after the command
+    public String arg(int index) {
+        return line.substring(starts[index], ends[index]);
+    }
+
+    // Method to copy out an argument together with everything after it, e.g. a message body or a group name
+    public String rest(int index) {
+        int end = line.length();
+        while (end > starts[index] && line.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return line.substring(starts[index], end);
+    }
+
+    // Method to check that an argument is a non-negative number that fits in an int
+    public boolean isIntArg(int index) {
+        int start = starts[index];
+        int end = ends[index];
+        if (end - start > 9) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) < '0' || line.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Method to read a number checked with isIntArg without creating a String for it
+    public int intArg(int index) {
+        int value = 0;
+        for (int i = starts[index]; i < ends[index]; i++) {
+            value = value * 10 + (line.charAt(i) - '0');
+        }
+        return value;
+    }
+}
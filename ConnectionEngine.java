@@ -0,0 +1,84 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+// Strategy for accepting client sockets and feeding their input lines to the server
+public interface ConnectionEngine {
+
+    // Callbacks an engine drives for each connected client, always in order for a given client
+    interface Session {
+        void onOpen();
+
+        void onLine(String line);
+
+        void onClose();
+
+        // Called once a backlogged transport can take more output
+        default void onWritable() {
+        }
+    }
+
+    // The socket side of a client as seen by its session
+    interface Transport extends Closeable {
+        // Stream to the socket; writes may block on the blocking engines
+        OutputStream output();
+
+        // Executor that runs this client's outbound writes, off the threads that produce the output
+        Executor writerExecutor();
+
+        // True while earlier output is still waiting for the socket (non-blocking engines only)
+        default boolean isBacklogged() {
+            return false;
+        }
+
+        // Method to run then with the outcome of future, holding back this client's later input until it has run
+        // Blocking engines give every client its own thread, which simply waits; the nio engine lends the
+        // worker to other clients meanwhile, so its few workers are not tied up by slow operations
+        default <T> void continueWith(CompletableFuture<T> future, BiConsumer<? super T, ? super Throwable> then) {
+            T value;
+            try {
+                value = future.join();
+            } catch (CompletionException | CancellationException e) {
+                then.accept(null, e instanceof CompletionException ? e.getCause() : e);
+                return;
+            }
+            then.accept(value, null);
+        }
+    }
+
+    // Creates the Session for a newly accepted client
+    interface SessionFactory {
+        Session create(Transport transport);
+    }
+
+    // Accept clients on the given port until the server shuts down
+    void serve(int port, SessionFactory factory) throws IOException;
+
+    // Method to pick an engine by name: threads (default), virtual or nio
+    static ConnectionEngine forName(String name) {
+        switch (name.toLowerCase()) {
+            case "threads":
+                // Writers block on slow sockets, so they get their own threads, reused once idle
+                return new ThreadedEngine("thread-per-client", Thread::new, Executors.newCachedThreadPool());
+            case "virtual":
+                ThreadFactory virtualThreads = virtualThreadFactory();
+                return new ThreadedEngine("virtual-thread", virtualThreads, task -> virtualThreads.newThread(task).start());
+            case "nio":
+                return new NioEngine(ServerConfig.getInt("workers", Runtime.getRuntime().availableProcessors()));
+            default:
+                throw new IllegalArgumentException("Unknown engine '" + name + "'. Expected threads, virtual or nio");
+        }
+    }
+
+    // Virtual threads arrived in Java 21, so look them up reflectively to keep compiling on older JDKs
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("The virtual engine requires Java 21 or newer", e);
+        }
+    }
+}
@@ -4,10 +4,17 @@ import java.util.UUID;
 public class Group {
     private final String id;
     private final String name;
+    // User who created the group and may delete it; null for the server's built-in groups
+    private final String owner;
 
     public Group(String id, String name) {
+        this(id, name, null);
+    }
+
+    public Group(String id, String name, String owner) {
         this.id = id;
         this.name = name;
+        this.owner = owner;
     }
 
     public String getId() {
@@ -18,6 +25,10 @@ public class Group {
         return name;
     }
 
+    public String getOwner() {
+        return owner;
+    }
+
     // Equals operator override
     @Override
     public boolean equals(Object o) {
@@ -0,0 +1,57 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.function.Consumer;
+
+// Helper type: durable record of the groups users created and deleted, kept next to the message journal
+// One line per change ("+<tab>id<tab>name<tab>owner" or "-<tab>id"), replayed on startup before the
+// messages so each recovered message finds its group; messages of deleted groups are skipped
+public class GroupLog {
+    private final Path file;
+    private FileChannel channel;
+
+    public GroupLog(Path file) {
+        this.file = file;
+    }
+
+    // Method to replay every change in order, then open the log for appends
+    public void recover(Consumer<Group> created, Consumer<String> deleted) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // Names never contain tabs, so only the owner can run on to the end of the line
+                    String[] fields = line.split("\t", 4);
+                    if (fields.length == 4 && fields[0].equals("+")) {
+                        created.accept(new Group(fields[1], fields[2], fields[3]));
+                    } else if (fields.length == 2 && fields[0].equals("-")) {
+                        deleted.accept(fields[1]);
+                    } else if (!line.isEmpty()) {
+                        System.out.println("Skipping unreadable line in " + file.getFileName() + ": " + line);
+                    }
+                }
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    public void created(Group group) throws IOException {
+        append("+\t" + group.getId() + "\t" + group.getName() + "\t" + group.getOwner() + "\n");
+    }
+
+    public void deleted(String groupId) throws IOException {
+        append("-\t" + groupId + "\n");
+    }
+
+    // Creating and deleting groups is rare, so every change is synced on its own
+    private synchronized void append(String line) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        channel.force(false);
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Helper type: every group on the server, each with its own message history and member set
+// Groups are spread over fixed shards by ID, so lookups are lock-free reads of one shard and
+// creating or deleting a group only touches its own shard and the name index
+// M is the type of a connected member (Server.ClientHandler)
+public class GroupRegistry<M> {
+    private static final int SHARD_BITS = 6;
+    private static final int SHARD_MASK = (1 << SHARD_BITS) - 1;
+
+    // One group and the state that belongs to it alone
+    public static final class Entry<M> {
+        private final Group group;
+        private final MessageHistory history;
+        private final Set<M> members = ConcurrentHashMap.newKeySet();
+        // Position in listing order, see page
+        private final long order;
+
+        Entry(Group group, long order) {
+            this.group = group;
+            this.history = new MessageHistory(group);
+            this.order = order;
+        }
+
+        public Group group() {
+            return group;
+        }
+
+        public MessageHistory history() {
+            return history;
+        }
+
+        public Set<M> members() {
+            return members;
+        }
+    }
+
+    private final List<ConcurrentHashMap<String, Entry<M>>> shards = new ArrayList<>();
+    // Lowercased name -> entry; also what keeps names unique
+    private final ConcurrentHashMap<String, Entry<M>> byName = new ConcurrentHashMap<>();
+    // Groups in the order they were added, for paging through the list
+    private final ConcurrentSkipListMap<Long, Group> ordered = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextOrder = new AtomicLong();
+    // Array copy of the listing for paging; groups change rarely, pages are read often
+    // Bumping changes makes the next page call rebuild it
+    private final AtomicLong changes = new AtomicLong();
+    private volatile Listing listing = new Listing(-1, new Group[0]);
+    // Numeric IDs for new groups; in a cluster each node only uses IDs congruent to its residue, like Message
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile int idStride = 1;
+    private volatile int idResidue = 0;
+
+    // Snapshot of the listing as it was after the given number of changes
+    private static final class Listing {
+        private final long changes;
+        private final Group[] groups;
+
+        Listing(long changes, Group[] groups) {
+            this.changes = changes;
+            this.groups = groups;
+        }
+    }
+
+    public GroupRegistry() {
+        for (int i = 0; i <= SHARD_MASK; i++) {
+            shards.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    // Method to put a group name in the form the name index is keyed by
+    public static String normalizeName(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Method to find a group by exact ID, or null
+    public Entry<M> get(String id) {
+        return shardOf(id).get(id);
+    }
+
+    // Method to find a group by exact ID, then by name in any case, or null
+    public Entry<M> find(String idOrName) {
+        Entry<M> entry = get(idOrName);
+        return entry != null ? entry : byName.get(normalizeName(idOrName));
+    }
+
+    // Method to add a group; returns null if its ID or name is already taken
+    public Entry<M> add(Group group) {
+        Entry<M> entry = new Entry<>(group, nextOrder.getAndIncrement());
+        String name = normalizeName(group.getName());
+        if (byName.putIfAbsent(name, entry) != null) {
+            return null;
+        }
+        if (shardOf(group.getId()).putIfAbsent(group.getId(), entry) != null) {
+            byName.remove(name, entry);
+            return null;
+        }
+        ordered.put(entry.order, group);
+        changes.incrementAndGet();
+        reserveId(group.getId());
+        return entry;
+    }
+
+    // Method to add a new group with the next free ID; returns null if the name is taken
+    public Entry<M> create(String name, String owner) {
+        // Checked up front too, so the common clash does not use up an ID
+        if (byName.containsKey(normalizeName(name))) {
+            return null;
+        }
+        while (true) {
+            String id = String.valueOf(nextId.getAndAdd(idStride));
+            if (get(id) != null) {
+                continue;
+            }
+            Entry<M> entry = add(new Group(id, name, owner));
+            if (entry != null || byName.containsKey(normalizeName(name))) {
+                return entry;
+            }
+        }
+    }
+
+    // Method to remove a group; returns its entry, or null if there was no such group
+    public Entry<M> remove(String id) {
+        Entry<M> entry = shardOf(id).remove(id);
+        if (entry != null) {
+            byName.remove(normalizeName(entry.group.getName()), entry);
+            ordered.remove(entry.order);
+            changes.incrementAndGet();
+        }
+        return entry;
+    }
+
+    public int size() {
+        return ordered.size();
+    }
+
+    // Method to list one page of groups in the order they were added; page 1 is the first
+    public List<Group> page(int page, int pageSize) {
+        Group[] groups = currentListing();
+        int from = (int) Math.min(groups.length, (long) (page - 1) * pageSize);
+        return Arrays.asList(groups).subList(from, Math.min(groups.length, from + pageSize));
+    }
+
+    // Method to get the listing snapshot, rebuilding it if groups were added or removed since it was taken
+    private Group[] currentListing() {
+        Listing current = listing;
+        long seen = changes.get();
+        if (current.changes != seen) {
+            // A change racing with the copy bumps the counter again, so the next call rebuilds
+            current = new Listing(seen, ordered.values().toArray(new Group[0]));
+            listing = current;
+        }
+        return current.groups;
+    }
+
+    public void forEach(Consumer<Entry<M>> action) {
+        for (ConcurrentHashMap<String, Entry<M>> shard : shards) {
+            shard.values().forEach(action);
+        }
+    }
+
+    // Method to make this node create only IDs of the form nodeIndex + k * nodeCount
+    public void partitionIds(int nodeIndex, int nodeCount) {
+        idStride = nodeCount;
+        idResidue = nodeIndex % nodeCount;
+        nextId.updateAndGet(next -> firstIdFrom(next));
+    }
+
+    // Method to make sure an ID that is or was in use (startup, the group log, other nodes) is never handed out again
+    public void reserveId(String id) {
+        try {
+            int taken = Integer.parseInt(id);
+            nextId.accumulateAndGet(taken, (next, past) -> Math.max(next, firstIdFrom(past + 1)));
+        } catch (NumberFormatException e) {
+            // Not a number, cannot collide with generated IDs
+        }
+    }
+
+    // Smallest ID at or above id that belongs to this node
+    private int firstIdFrom(int id) {
+        return id + Math.floorMod(idResidue - id, idStride);
+    }
+
+    private ConcurrentHashMap<String, Entry<M>> shardOf(String id) {
+        // Spread the hash so sequential numeric IDs land in different shards
+        int hash = id.hashCode();
+        return shards.get((hash ^ (hash >>> 16) ^ (hash >>> SHARD_BITS)) & SHARD_MASK);
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+// Helper type: sends a range of one group's history to one client, a chunk at a time
+// Each chunk is read straight from the group's store and queued as one frame; the next chunk is only read
+// once the client's queue has drained, so a long replay never overflows the outbound buffer
+// The first chunk goes out on the calling thread, the rest on the given executor
+public class HistoryStream implements Runnable {
+    private final MessageHistory history;
+    private final OutboundQueue outbound;
+    private final Executor executor;
+    private final Function<Message, String> format;
+    private final int chunkChars;
+    private final int endSlot;
+    private final String footer;
+    private String header;
+    private int nextSlot;
+    private volatile boolean cancelled;
+    // Started once this stream has been fully queued and taken by the client
+    private HistoryStream next;
+
+    // Streams the messages in slots [fromSlot, endSlot) oldest first, between a header and a footer line (either may be null)
+    public HistoryStream(MessageHistory history, int fromSlot, int endSlot, Function<Message, String> format,
+            String header, String footer, OutboundQueue outbound, Executor executor, int chunkChars) {
+        this.history = history;
+        this.nextSlot = fromSlot;
+        this.endSlot = endSlot;
+        this.format = format;
+        this.header = header;
+        this.footer = footer;
+        this.outbound = outbound;
+        this.executor = executor;
+        this.chunkChars = chunkChars;
+    }
+
+    // Method to send another stream to the same client after this one, e.g. several groups in turn
+    // Only one stream at a time may wait on a client's queue, so streams must be chained rather than run side by side
+    public HistoryStream andThen(HistoryStream next) {
+        this.next = next;
+        return next;
+    }
+
+    // Method to stop after the chunk being sent, e.g. when the client asks for another page; chained streams stop too
+    public void cancel() {
+        cancelled = true;
+        if (next != null) {
+            next.cancel();
+        }
+    }
+
+    // Method to send the next chunk and, if more is left, wait for the client to take it before reading on
+    @Override
+    public void run() {
+        if (cancelled) {
+            return;
+        }
+        StringBuilder chunk = new StringBuilder();
+        if (header != null) {
+            chunk.append(header);
+            header = null;
+        }
+        // Always make progress, even if one message is bigger than a chunk
+        while (nextSlot < endSlot && (chunk.length() == 0 || chunk.length() < chunkChars)) {
+            Message message = history.messageAt(nextSlot++);
+            if (message != null) {
+                appendLine(chunk, format.apply(message));
+            }
+        }
+        if (nextSlot >= endSlot && footer != null) {
+            appendLine(chunk, footer);
+        }
+        if (chunk.length() > 0 && !outbound.send(OutboundQueue.encodeLine(chunk.toString()))) {
+            // Dropped or disconnected; the client will not get the rest in order, so stop here
+            cancelled = true;
+            return;
+        }
+        if (nextSlot < endSlot) {
+            outbound.whenDrained(() -> executor.execute(this));
+        } else if (next != null) {
+            outbound.whenDrained(() -> executor.execute(next));
+        }
+    }
+
+    private static void appendLine(StringBuilder chunk, String line) {
+        if (chunk.length() > 0) {
+            chunk.append(System.lineSeparator());
+        }
+        chunk.append(line);
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Helper type: headless load generator built on Client's connection handling
+// Connects many simulated users to a running server, puts each one in a group according to the mix,
+// posts at a fixed rate and measures how long every post takes to reach each member of its group
+// Run with "java Client --load=true [--load.users=500 --load.rate=1000 ...]"
+public class LoadGenerator {
+    private final String host;
+    private final int port;
+    private final int users;
+    private final int postsPerSecond;
+    private final int warmupSeconds;
+    private final int seconds;
+    // Group ID each user posts to; "0" is the public group every user is already in
+    private final String[] groupOf;
+    // Subjects carry this run's tag and the post's intended send time, so receivers can time delivery
+    // and ignore older posts replayed from history
+    private final String runTag = "lg" + Long.toHexString(new Random().nextLong() & 0xffffffL) + "-";
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder delivered = new LongAdder();
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+
+    public LoadGenerator(String host, int port, int users, int postsPerSecond, int warmupSeconds, int seconds, String mix) {
+        this.host = host;
+        this.port = port;
+        this.users = users;
+        this.postsPerSecond = postsPerSecond;
+        this.warmupSeconds = warmupSeconds;
+        this.seconds = seconds;
+        this.groupOf = assignGroups(mix, users);
+    }
+
+    // Method to build a load generator from the --load.* options
+    public static LoadGenerator fromConfig() {
+        return new LoadGenerator(
+            ServerConfig.getString("load.host", "localhost"),
+            ServerConfig.getInt("load.port", 5000),
+            ServerConfig.getInt("load.users", 100),
+            ServerConfig.getInt("load.rate", 1000),
+            ServerConfig.getInt("load.warmup", 2),
+            ServerConfig.getInt("load.seconds", 10),
+            ServerConfig.getString("load.mix", "1:1,2:1,3:1,4:1,5:1"));
+    }
+
+    // Method to split users between groups in proportion to a "groupId:weight,..." mix
+    private static String[] assignGroups(String mix, int users) {
+        List<String> ids = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        double total = 0;
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid group mix '" + mix + "'. Format: <group_id>:<weight>,...");
+            }
+            double weight = Double.parseDouble(pair[1]);
+            ids.add(pair[0]);
+            weights.add(weight);
+            total += weight;
+        }
+
+        String[] groupOf = new String[users];
+        double cumulative = 0;
+        int next = 0;
+        for (int g = 0; g < ids.size(); g++) {
+            cumulative += weights.get(g);
+            int end = g == ids.size() - 1 ? users : (int) Math.round(users * cumulative / total);
+            for (; next < end; next++) {
+                groupOf[next] = ids.get(g);
+            }
+        }
+        return groupOf;
+    }
+
+    // Method to connect everyone, run the posting schedule and print the report
+    public void run() throws IOException, InterruptedException {
+        // Every user must be in its group before posting starts
+        CountDownLatch ready = new CountDownLatch(users);
+        List<Client.Connection> connections = new ArrayList<>(users);
+        Map<String, Integer> groupSizes = new HashMap<>();
+
+        System.out.println("Connecting " + users + " users to " + host + ":" + port + "...");
+        for (int i = 0; i < users; i++) {
+            String username = "load-" + i;
+            String group = groupOf[i];
+            groupSizes.merge(group, 1, Integer::sum);
+
+            Client.Connection connection = new Client.Connection(host, port);
+            connections.add(connection);
+            // Join notices are batched into summaries that may not name everyone, so instead the user asks for its
+            // group's user list after joining; commands run in order, so once that list arrives the join is done
+            // Registration sends the public group's list first, hence two lists
+            int[] listsSeen = new int[1];
+            connection.receive(line -> {
+                if (line.startsWith("Users in ") && ++listsSeen[0] == 2) {
+                    ready.countDown();
+                }
+                onLine(line);
+            });
+            connection.send(username);
+            if (!group.equals("0")) {
+                connection.send("%groupjoin " + group);
+            }
+            connection.send("%groupusers " + group);
+        }
+        if (!ready.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Only " + (users - ready.getCount()) + " of " + users + " users finished joining, giving up.");
+            closeAll(connections);
+            return;
+        }
+
+        long expectedDeliveries = 0;
+        long postsMeasured = 0;
+
+        // Open-loop schedule: post i is due at start + i / rate, and latency counts from that due time,
+        // so a stalled server shows up as latency instead of silently lowering the post rate
+        long start = System.nanoTime();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / postsPerSecond;
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        System.out.println("Posting " + postsPerSecond + " posts/s for " + seconds + " s after a " + warmupSeconds + " s warm-up...");
+        for (long post = 0; ; post++) {
+            long due = start + post * intervalNanos;
+            if (due >= measureUntil) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            int user = (int) (post % users);
+            String group = groupOf[user];
+            String subject = runTag + due;
+            connections.get(user).send(group.equals("0")
+                ? "%post " + subject + " load"
+                : "%grouppost " + group + " " + subject + " load");
+            if (due >= measureFrom) {
+                postsMeasured++;
+                // The public group holds every user, not just the ones the mix put there
+                expectedDeliveries += group.equals("0") ? users : groupSizes.get(group);
+            }
+        }
+        long postingEnded = System.nanoTime();
+
+        // Give the last posts time to arrive, stopping early once deliveries stop coming in
+        long lastCount = -1;
+        for (int i = 0; i < 50 && delivered.sum() != lastCount; i++) {
+            lastCount = delivered.sum();
+            Thread.sleep(100);
+        }
+        closeAll(connections);
+
+        double measuredSeconds = (Math.min(postingEnded, measureUntil) - measureFrom) / 1e9;
+        System.out.println();
+        System.out.println("Users: " + users + ", group mix: " + groupSizes);
+        System.out.printf("Posts sent: %d (%.0f posts/s)%n", postsMeasured, postsMeasured / measuredSeconds);
+        System.out.printf("Deliveries: %d of %d expected (%.0f messages/s)%n",
+            delivered.sum(), expectedDeliveries, delivered.sum() / measuredSeconds);
+        System.out.printf("Post-to-delivery latency (ms): p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+            millis(latency.valueAtPercentile(50)), millis(latency.valueAtPercentile(90)),
+            millis(latency.valueAtPercentile(99)), millis(latency.valueAtPercentile(99.9)), millis(latency.max()));
+    }
+
+    // Method to time one broadcast line, if it is one of this run's posts inside the measured window
+    private void onLine(String line) {
+        if (!line.startsWith("Message ID: ")) {
+            return;
+        }
+        int subject = line.indexOf(", Subject: " + runTag);
+        if (subject < 0) {
+            return;
+        }
+        int start = subject + ", Subject: ".length() + runTag.length();
+        int end = line.indexOf(',', start);
+        long due;
+        try {
+            due = Long.parseLong(end < 0 ? line.substring(start) : line.substring(start, end));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (due >= measureFrom && due < measureUntil) {
+            latency.record(System.nanoTime() - due);
+            delivered.increment();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void closeAll(List<Client.Connection> connections) {
+        for (Client.Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                System.out.println("Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -1,10 +1,16 @@
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Helper type 
 public class Message {
-    private static int nextId = 1;
+    // Shared by every ClientHandler thread, so IDs are handed out atomically
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    // In a cluster each node only hands out IDs congruent to its own residue, so IDs never collide
+    private static volatile int idStride = 1;
+    private static volatile int idResidue = 0;
     private final int id;
     private final String sender;
     private final String subject;
@@ -14,19 +20,81 @@ public class Message {
 
     public Message(String sender, String subject, String content, Group group) {
         // Increment message IDs for each one that is created
-        this.id = nextId++;
+        this.id = nextId.getAndAdd(idStride);
         this.sender = sender;
         this.subject = subject;
         this.content = content;
-        // Get current time
-        this.postDate = LocalDateTime.now();
+        // Get current time, to the millisecond so every copy of the message (journal, history, peers) agrees
+        this.postDate = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
         this.group = group;
     }
 
+    // Constructor for messages read back from storage, which keep their original ID and date
+    public Message(int id, String sender, String subject, String content, LocalDateTime postDate, Group group) {
+        this.id = id;
+        this.sender = sender;
+        this.subject = subject;
+        this.content = content;
+        this.postDate = postDate;
+        this.group = group;
+    }
+
+    // Method to make sure new messages get IDs above every restored one
+    public static void advanceIdsPast(int id) {
+        nextId.accumulateAndGet(id, (next, past) -> Math.max(next, firstIdAbove(past)));
+    }
+
+    // Method to make this node hand out only IDs of the form nodeIndex + 1 + k * nodeCount
+    public static void partitionIds(int nodeIndex, int nodeCount) {
+        idStride = nodeCount;
+        idResidue = (nodeIndex + 1) % nodeCount;
+        nextId.updateAndGet(next -> firstIdAbove(next - 1));
+    }
+
+    // The residue and stride of this node's IDs, which tell its messages apart from other nodes' (see partitionIds)
+    public static int idResidue() {
+        return idResidue;
+    }
+
+    public static int idStride() {
+        return idStride;
+    }
+
+    // Method to tell whether a message ID was handed out by the node with the given residue
+    public static boolean isFrom(int id, int residue) {
+        return Math.floorMod(id - residue, idStride) == 0;
+    }
+
+    // Smallest ID above id that belongs to this node
+    private static int firstIdAbove(int id) {
+        int candidate = id + 1;
+        return candidate + Math.floorMod(idResidue - candidate, idStride);
+    }
+
     public int getId() {
         return id;
     }
 
+    public String getSender() {
+        return sender;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public LocalDateTime getPostDate() {
+        return postDate;
+    }
+
+    public Group getGroup() {
+        return group;
+    }
+
     // Overridden method to convert the message data to one string
     @Override
     public String toString() {
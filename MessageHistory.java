@@ -0,0 +1,582 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+
+// Helper type: append-only log of the messages posted to one group, in posting order and indexed by message ID
+// Any number of threads may append at once without waiting on each other; readers never lock
+// and never see a half-written slot
+// The only waits are rare: a writer that fills a chunk's text block adds the next one under the chunk's lock,
+// and writers that run into the ID index growing wait for the bigger table
+// Messages are kept column by column rather than as objects: IDs, journal locations, post times and
+// interned senders in primitive arrays, subjects and contents as UTF-8 in byte arenas; a Message is only
+// built when someone reads it
+// With tiering on, only the newest messages stay on the heap; older ones are dropped from memory
+// and read back from cold storage when asked for
+public class MessageHistory {
+    // Chunks double from 8 slots up to 1024 so a quiet group stays small, then stay at 1024
+    // Growing the log never copies existing messages
+    private static final int FIRST_CHUNK_BITS = 3;
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final int GROWING_CHUNKS = CHUNK_BITS - FIRST_CHUNK_BITS;
+    private static final int GROWING_SLOTS = (1 << CHUNK_BITS) - (1 << FIRST_CHUNK_BITS);
+    // Arena blocks a full chunk's text is cut into; a message bigger than this gets a block of its own
+    private static final int BLOCK_BYTES = 32 * 1024;
+    // Location of a message that only exists in memory and so can never be evicted
+    public static final long NOT_STORED = -1;
+
+    // Tiering settings shared by every group, set once at startup
+    private static volatile long memoryBudgetBytes;
+    private static volatile ColdStorage coldStorage;
+
+    // Server-wide read and memory counters
+    private static final LongAdder hotReads = new LongAdder();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder diskReads = new LongAdder();
+    private static final AtomicLong totalResidentBytes = new AtomicLong();
+
+    // Every sender name once for the whole server; messages only store its number
+    private static final ConcurrentHashMap<String, Integer> senderIds = new ConcurrentHashMap<>();
+    private static volatile String[] senderNames = new String[64];
+    private static int senderCount;
+
+    // A run of consecutive slots, one array per field
+    private static final class Chunk {
+        private final int first;
+        // Message ID of each slot, 0 until the slot is filled; written last, so a non-zero ID
+        // means every other column of the slot can be read
+        private final AtomicIntegerArray ids;
+        private final long[] locations;
+        private final long[] postMillis;
+        private final int[] senders;
+        // Where a slot's text starts in the arena (block << 32 | offset); the content follows the subject
+        private final long[] textStarts;
+        private final int[] subjectBytes;
+        private final int[] contentBytes;
+        // Text of the chunk's messages, or null once every slot has been evicted
+        private volatile byte[][] blocks = new byte[2][];
+        // Set by a message with no durable copy, whose text can then never be dropped
+        private volatile boolean pinned;
+        private final int blockBytes;
+        // Last block in use and bytes taken from it (block << 32 | used); only a new block is added under the lock
+        private final AtomicLong cursor = new AtomicLong();
+
+        Chunk(int first, int size) {
+            this.first = first;
+            ids = new AtomicIntegerArray(size);
+            locations = new long[size];
+            postMillis = new long[size];
+            senders = new int[size];
+            textStarts = new long[size];
+            subjectBytes = new int[size];
+            contentBytes = new int[size];
+            // Assume about 128 bytes of text per message so small chunks get small blocks
+            blockBytes = Math.min(BLOCK_BYTES, size * 128);
+            // A chunk is only made for a message about to be written, so its first block is needed straight away
+            blocks[0] = new byte[blockBytes];
+        }
+
+        int size() {
+            return ids.length();
+        }
+
+        // Method to reserve room for length bytes of text: a CAS on the cursor, or the lock when the block is full
+        long allocate(int length) {
+            while (true) {
+                // Blocks are published before the cursor points into them, so read the cursor first
+                long start = cursor.get();
+                int block = (int) (start >>> 32);
+                if ((int) start + length <= blocks[block].length) {
+                    if (cursor.compareAndSet(start, start + length)) {
+                        return start;
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    // Another writer may have added a block while this one waited
+                    if (cursor.get() != start) {
+                        continue;
+                    }
+                    byte[][] current = blocks;
+                    if (block + 1 == current.length) {
+                        current = Arrays.copyOf(current, current.length * 2);
+                    }
+                    current[block + 1] = new byte[Math.max(blockBytes, length)];
+                    blocks = current;
+                    long next = (long) (block + 1) << 32;
+                    cursor.set(next + length);
+                    return next;
+                }
+            }
+        }
+    }
+
+    // Message ID to slot: open addressing over entries of ID << 32 | slot, so an entry is claimed whole with one CAS
+    // Writers only lock to grow the table; while it is copied every free entry of the old one is marked MOVED,
+    // so nothing can be added to it that the copy would miss, and writers that run into a mark wait for the copy
+    private static final class IdIndex {
+        // Until the first insert every index shares one empty table, so groups nobody posts to stay small
+        private static final AtomicLongArray EMPTY = new AtomicLongArray(0);
+        // ID 0 is never used, so 0 marks a free entry; no ID is negative, so neither is a live entry
+        private static final long MOVED = -1;
+        private volatile AtomicLongArray table = EMPTY;
+        // Entries added since the table was made, counting the ones copied into it
+        private final AtomicInteger size = new AtomicInteger();
+
+        // An ID already in the index keeps its first slot
+        void put(int id, int slot) {
+            long entry = (long) id << 32 | (slot & 0xFFFFFFFFL);
+            while (true) {
+                AtomicLongArray current = table;
+                int mask = current.length() - 1;
+                int i = hash(id) & mask;
+                // Stops at a MOVED mark, or after a whole lap of a table other writers filled before it could grow
+                int probes = 0;
+                while (probes < current.length()) {
+                    long existing = current.get(i);
+                    if (existing == 0) {
+                        if (current.compareAndSet(i, 0, entry)) {
+                            // Keep at most three entries in four taken so probes stay short
+                            if (size.incrementAndGet() * 4 > current.length() * 3) {
+                                grow(current);
+                            }
+                            return;
+                        }
+                        // Lost the entry to another writer or to the copy; look at it again
+                        continue;
+                    }
+                    if (existing == MOVED) {
+                        break;
+                    }
+                    if ((int) (existing >>> 32) == id) {
+                        return;
+                    }
+                    i = (i + 1) & mask;
+                    probes++;
+                }
+                grow(current);
+            }
+        }
+
+        // Method to replace a table with one twice the size, unless another writer already has
+        private synchronized void grow(AtomicLongArray from) {
+            if (table != from) {
+                return;
+            }
+            AtomicLongArray grown = new AtomicLongArray(Math.max(16, from.length() * 2));
+            int mask = grown.length() - 1;
+            for (int i = 0; i < from.length(); i++) {
+                long entry;
+                do {
+                    entry = from.get(i);
+                } while (entry == 0 && !from.compareAndSet(i, 0, MOVED));
+                if (entry != 0) {
+                    // Nobody else sees the new table yet, and entries never change once claimed
+                    int j = hash((int) (entry >>> 32)) & mask;
+                    while (grown.get(j) != 0) {
+                        j = (j + 1) & mask;
+                    }
+                    grown.set(j, entry);
+                }
+            }
+            table = grown;
+        }
+
+        // Returns -1 if the ID is not there
+        // A free entry was free when every ID probing past it was added, so a MOVED mark means the ID is only
+        // worth looking for again in the table that replaced this one
+        int get(int id) {
+            AtomicLongArray current = table;
+            while (true) {
+                int mask = current.length() - 1;
+                int i = hash(id) & mask;
+                for (int probes = 0; probes < current.length(); probes++) {
+                    long entry = current.get(i);
+                    if (entry == 0) {
+                        return -1;
+                    }
+                    if (entry == MOVED) {
+                        break;
+                    }
+                    if ((int) (entry >>> 32) == id) {
+                        return (int) entry;
+                    }
+                    i = (i + 1) & mask;
+                }
+                AtomicLongArray newer = table;
+                if (newer == current) {
+                    return -1;
+                }
+                current = newer;
+            }
+        }
+
+        // IDs are often a fixed stride apart (see Message.partitionIds), so spread them before masking
+        private static int hash(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private final Group group;
+    // Chunk directory, replaced by a bigger copy under chunkLock when it runs out of room
+    private volatile AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(4);
+    private final Object chunkLock = new Object();
+    // Next slot handed to a writer
+    private final AtomicInteger reserved = new AtomicInteger();
+    // Slots below the published tail are all filled; whichever writer fills the gap at the tail moves it forward
+    private final AtomicInteger published = new AtomicInteger();
+    // Message IDs are global, so a group's IDs have gaps; a hash index keeps lookups O(1) anyway
+    private final IdIndex slotsById = new IdIndex();
+    // Text bytes held by this group's hot messages
+    private final AtomicLong residentBytes = new AtomicLong();
+    // Oldest slot that may still be hot; only the thread holding the evicting flag moves it
+    private int evictCursor;
+    // Start of the oldest chunk whose text is still on the heap; search covers everything from here up
+    // Moved with evictCursor, and stops at a pinned chunk for good since its text never leaves
+    private int searchFloor;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    // Words of the hot messages, for %search
+    private final SearchIndex index = new SearchIndex();
+
+    // Messages read back out of the history belong to group
+    public MessageHistory(Group group) {
+        this.group = group;
+    }
+
+    // Method to turn on tiering: each group keeps at most budgetBytes of message text on the heap
+    public static void configureTiering(long budgetBytes, ColdStorage storage) {
+        coldStorage = storage;
+        memoryBudgetBytes = budgetBytes;
+    }
+
+    public void add(Message message) {
+        add(message, NOT_STORED);
+    }
+
+    // Method to append a message whose durable copy lives at location (see MessageJournal)
+    public void add(Message message, long location) {
+        // Claim a slot and fill it without coordinating with other writers
+        // The ID index is written first so a published message can always be found by ID
+        int slot = reserved.getAndIncrement();
+        Chunk chunk = chunkFor(slot);
+        int i = slot - chunk.first;
+        slotsById.put(message.getId(), slot);
+
+        byte[] subject = message.getSubject().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        long start = chunk.allocate(subject.length + content.length);
+        byte[] block = chunk.blocks[(int) (start >>> 32)];
+        System.arraycopy(subject, 0, block, (int) start, subject.length);
+        System.arraycopy(content, 0, block, (int) start + subject.length, content.length);
+        chunk.textStarts[i] = start;
+        chunk.subjectBytes[i] = subject.length;
+        chunk.contentBytes[i] = content.length;
+        chunk.locations[i] = location;
+        chunk.postMillis[i] = toMillis(message.getPostDate());
+        chunk.senders[i] = senderId(message.getSender());
+        if (location == NOT_STORED) {
+            chunk.pinned = true;
+        }
+        long bytes = subject.length + content.length;
+        residentBytes.addAndGet(bytes);
+        totalResidentBytes.addAndGet(bytes);
+        chunk.ids.set(i, message.getId());
+        index.add(slot, message.getSubject(), message.getContent());
+
+        // Move the tail over every contiguous filled slot; if an earlier writer is still busy,
+        // it carries the tail past this slot when it finishes
+        int tail = published.get();
+        while (isFilled(tail)) {
+            if (published.compareAndSet(tail, tail + 1)) {
+                tail++;
+            } else {
+                tail = published.get();
+            }
+        }
+        evictIfOverBudget();
+    }
+
+    // Method to drop the oldest hot messages from the heap until the group is back under budget
+    // Text is freed a whole chunk at a time, once the cursor has passed the chunk's last slot
+    private void evictIfOverBudget() {
+        long budget = memoryBudgetBytes;
+        if (budget <= 0 || residentBytes.get() <= budget || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int end = published.get();
+            while (residentBytes.get() > budget && evictCursor < end) {
+                int slot = evictCursor++;
+                Chunk chunk = chunkAt(slot);
+                // The text only leaves the heap, and the count, when the whole chunk can go; a pinned chunk keeps it
+                if (slot - chunk.first == chunk.size() - 1 && !chunk.pinned) {
+                    long bytes = 0;
+                    for (int i = 0; i < chunk.size(); i++) {
+                        bytes += chunk.subjectBytes[i] + chunk.contentBytes[i];
+                    }
+                    chunk.blocks = null;
+                    residentBytes.addAndGet(-bytes);
+                    totalResidentBytes.addAndGet(-bytes);
+                }
+            }
+            // Search only covers what is still in memory; the cursor can be partway through a chunk whose text is
+            // all still there, so search is cut back to whole freed chunks
+            while (searchFloor < evictCursor) {
+                Chunk chunk = chunkAt(searchFloor);
+                if (chunk.blocks != null) {
+                    break;
+                }
+                searchFloor = chunk.first + chunk.size();
+            }
+            index.trimBelow(searchFloor);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    // Method to find a message by ID, or null if this group has no such message
+    public Message get(int id) {
+        int slot = slotOf(id);
+        return slot < 0 ? null : messageAt(slot);
+    }
+
+    // Method to check for a message by ID without loading it
+    public boolean contains(int id) {
+        return slotOf(id) >= 0;
+    }
+
+    // Method to find the slot holding a message by ID, or -1 if this group has no such message
+    public int slotOf(int id) {
+        int slot = slotsById.get(id);
+        // A slot past the tail is still being written and is not part of the history yet
+        if (slot < 0 || slot >= published.get() || idAt(slot) != id) {
+            return -1;
+        }
+        return slot;
+    }
+
+    // Method to copy out the most recent messages, oldest first
+    public List<Message> last(int count) {
+        int end = published.get();
+        int start = Math.max(0, end - count);
+        List<Message> recent = new ArrayList<>(end - start);
+        for (int slot = start; slot < end; slot++) {
+            Message message = messageAt(slot);
+            if (message != null) {
+                recent.add(message);
+            }
+        }
+        return recent;
+    }
+
+    // Method to find the newest messages containing every word of a query, newest first
+    public List<Message> search(String query, int limit) {
+        int[] slots = index.search(query, limit, published.get());
+        List<Message> found = new ArrayList<>(slots.length);
+        for (int slot : slots) {
+            Message message = messageAt(slot);
+            if (message != null) {
+                found.add(message);
+            }
+        }
+        return found;
+    }
+
+    // Method to find where a page of history ending just before a message starts; slots count from 0 in posting order
+    // Returns the slot of beforeId, or the end of the history when beforeId is 0
+    // A cursor that is not in this group falls between the slots of the nearest IDs
+    public int slotBefore(int beforeId) {
+        int end = published.get();
+        if (beforeId <= 0) {
+            return end;
+        }
+        int slot = slotOf(beforeId);
+        if (slot >= 0) {
+            return slot;
+        }
+        // IDs grow with posting order apart from concurrent posts, so a binary search lands close enough
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (idAt(middle) < beforeId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Method to get the ID of the message in a published slot without loading it
+    public int idAt(int slot) {
+        Chunk chunk = chunkAt(slot);
+        return chunk.ids.get(slot - chunk.first);
+    }
+
+    // Method to get the message in a published slot from whichever tier holds it, or null if it cannot be read
+    public Message messageAt(int slot) {
+        Chunk chunk = chunkAt(slot);
+        int i = slot - chunk.first;
+        // Reading the ID first makes the rest of the slot visible
+        int id = chunk.ids.get(i);
+        byte[][] blocks = chunk.blocks;
+        if (blocks != null) {
+            hotReads.increment();
+            long start = chunk.textStarts[i];
+            byte[] block = blocks[(int) (start >>> 32)];
+            int offset = (int) start;
+            String subject = new String(block, offset, chunk.subjectBytes[i], StandardCharsets.UTF_8);
+            String content = new String(block, offset + chunk.subjectBytes[i], chunk.contentBytes[i],
+                StandardCharsets.UTF_8);
+            return new Message(id, senderNames[chunk.senders[i]], subject, content,
+                toDateTime(chunk.postMillis[i]), group);
+        }
+        Message message = coldStorage.cached(id);
+        if (message != null) {
+            cacheHits.increment();
+            return message;
+        }
+        try {
+            diskReads.increment();
+            return coldStorage.load(chunk.locations[i]);
+        } catch (IOException e) {
+            System.out.println("Error loading message " + id + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public int size() {
+        return published.get();
+    }
+
+    public boolean isEmpty() {
+        return published.get() == 0;
+    }
+
+    public long residentBytes() {
+        return residentBytes.get();
+    }
+
+    // Method to take this history's messages out of the server-wide total when its group is deleted
+    public void release() {
+        totalResidentBytes.addAndGet(-residentBytes.getAndSet(0));
+    }
+
+    public static long totalResidentBytes() {
+        return totalResidentBytes.get();
+    }
+
+    public static long hotReads() {
+        return hotReads.sum();
+    }
+
+    public static long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    public static long diskReads() {
+        return diskReads.sum();
+    }
+
+    // Method to get the number standing for a sender, handing out the next one the first time a name is seen
+    private static int senderId(String name) {
+        Integer id = senderIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (senderIds) {
+            id = senderIds.get(name);
+            if (id != null) {
+                return id;
+            }
+            String[] names = senderNames;
+            if (senderCount == names.length) {
+                names = Arrays.copyOf(names, senderCount * 2);
+            }
+            // The name goes in before the number is handed out, so readers always find it
+            names[senderCount] = name;
+            senderNames = names;
+            senderIds.put(name, senderCount);
+            return senderCount++;
+        }
+    }
+
+    // Post times are kept to the millisecond, which is all Message records (see Message)
+    private static long toMillis(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) * 1000 + time.getNano() / 1_000_000;
+    }
+
+    private static LocalDateTime toDateTime(long millis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), Math.floorMod(millis, 1000) * 1_000_000,
+            ZoneOffset.UTC);
+    }
+
+    // Readers only ask for published slots, whose chunks always exist
+    private Chunk chunkAt(int slot) {
+        return chunks.get(chunkIndex(slot));
+    }
+
+    private boolean isFilled(int slot) {
+        AtomicReferenceArray<Chunk> directory = chunks;
+        int index = chunkIndex(slot);
+        if (index >= directory.length()) {
+            return false;
+        }
+        Chunk chunk = directory.get(index);
+        return chunk != null && chunk.ids.get(slot - chunk.first) != 0;
+    }
+
+    private static int chunkIndex(int slot) {
+        if (slot < GROWING_SLOTS) {
+            // Chunk k starts at slot 8 * (2^k - 1)
+            return 31 - Integer.numberOfLeadingZeros(slot + (1 << FIRST_CHUNK_BITS)) - FIRST_CHUNK_BITS;
+        }
+        return GROWING_CHUNKS + ((slot - GROWING_SLOTS) >>> CHUNK_BITS);
+    }
+
+    // Method to get the chunk holding a slot, allocating it (and growing the directory) on first use
+    private Chunk chunkFor(int slot) {
+        int index = chunkIndex(slot);
+        AtomicReferenceArray<Chunk> directory = chunks;
+        if (index < directory.length()) {
+            Chunk chunk = directory.get(index);
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+
+        // Only one writer per chunk gets here, so a lock is cheap
+        synchronized (chunkLock) {
+            directory = chunks;
+            if (index >= directory.length()) {
+                AtomicReferenceArray<Chunk> grown = new AtomicReferenceArray<>(Math.max(directory.length() * 2, index + 1));
+                for (int i = 0; i < directory.length(); i++) {
+                    grown.set(i, directory.get(i));
+                }
+                directory = grown;
+                chunks = grown;
+            }
+            Chunk chunk = directory.get(index);
+            if (chunk == null) {
+                int first;
+                int size;
+                if (index < GROWING_CHUNKS) {
+                    first = ((1 << index) - 1) << FIRST_CHUNK_BITS;
+                    size = 1 << (index + FIRST_CHUNK_BITS);
+                } else {
+                    first = GROWING_SLOTS + ((index - GROWING_CHUNKS) << CHUNK_BITS);
+                    size = CHUNK_MASK + 1;
+                }
+                chunk = new Chunk(first, size);
+                directory.set(index, chunk);
+            }
+            return chunk;
+        }
+    }
+}
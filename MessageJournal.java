@@ -0,0 +1,318 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+// Durable append-only log of every posted message, split into numbered segment files
+// One writer thread commits whatever posts are waiting as a single batch with one fsync,
+// so posters pay for a sync per batch rather than per message
+public class MessageJournal {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Record header: body length followed by the CRC32 of the body
+    private static final int HEADER_BYTES = 8;
+    // Upper bound on records per batch so one commit cannot grow without limit
+    private static final int MAX_BATCH = 4096;
+    // A record's location packs its segment number above its byte offset within the segment
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final BlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<>();
+    private FileChannel segment;
+    private long segmentNumber;
+    // Where the batch being written started; a failed batch is cut back to here (see discardFailedBatch)
+    private long batchSegment;
+    private long batchStart = -1;
+    // Read-only channels for loading single records back, opened on first use
+    private final ConcurrentHashMap<Long, FileChannel> readers = new ConcurrentHashMap<>();
+
+    // Record waiting to be committed, and the future its poster waits on (completed with the record's location)
+    private static final class PendingRecord {
+        private final ByteBuffer data;
+        private final CompletableFuture<Long> committed = new CompletableFuture<>();
+
+        PendingRecord(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    public MessageJournal(Path directory, long segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Method to replay every journaled message and its location into sink, then open the journal for appends
+    // Returns the number of messages recovered
+    public int recover(Function<String, Group> groupsById, ObjLongConsumer<Message> sink) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments();
+        int recovered = 0;
+        long validEnd = 0;
+
+        for (Path path : segments) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                // Mapping the whole segment lets recovery parse records straight out of the page cache
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                long number = segmentNumber(path);
+                validEnd = 0;
+                Message message;
+                while ((message = readRecord(buffer, groupsById)) != null) {
+                    long location = (number << OFFSET_BITS) | validEnd;
+                    validEnd = buffer.position();
+                    if (message.getGroup() != null) {
+                        sink.accept(message, location);
+                        recovered++;
+                    }
+                    Message.advanceIdsPast(message.getId());
+                }
+                if (validEnd < channel.size()) {
+                    System.out.println("Journal segment " + path.getFileName() + " has a torn tail after byte " + validEnd);
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            openSegment(1, 0);
+        } else {
+            // Keep appending to the last segment, dropping any half-written record at its end
+            Path last = segments.get(segments.size() - 1);
+            openSegment(segmentNumber(last), validEnd);
+        }
+
+        Thread writer = new Thread(this::writeLoop, "message-journal");
+        writer.setDaemon(true);
+        writer.start();
+        return recovered;
+    }
+
+    // Method to queue a message for the next commit; the future completes with its location once it is on disk
+    public CompletableFuture<Long> append(Message message) {
+        PendingRecord record = new PendingRecord(encode(message));
+        pending.add(record);
+        return record.committed;
+    }
+
+    // Writer thread: take everything queued, write it, sync once, then release every waiting poster
+    private void writeLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+
+            try {
+                if (batchStart >= 0) {
+                    // The last failed batch could not be cut off yet; nothing may be written after it
+                    discardFailedBatch();
+                }
+                batchSegment = segmentNumber;
+                batchStart = segment.position();
+                long[] locations = new long[batch.size()];
+                for (int i = 0; i < batch.size(); i++) {
+                    ByteBuffer data = batch.get(i).data;
+                    if (segment.position() > 0 && segment.position() + data.remaining() > segmentBytes) {
+                        rollSegment();
+                    }
+                    locations[i] = (segmentNumber << OFFSET_BITS) | segment.position();
+                    writeRecord(segment, data);
+                }
+                segment.force(false);
+                batchStart = -1;
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).committed.complete(locations[i]);
+                }
+            } catch (IOException e) {
+                System.out.println("Error writing message journal: " + e.getMessage());
+                // Cut the batch off before telling its posters, so a restart after they hear of the failure cannot bring it back
+                if (batchStart >= 0) {
+                    try {
+                        discardFailedBatch();
+                    } catch (IOException again) {
+                        System.out.println("Error cutting a failed batch off the message journal, retrying before the next batch: "
+                            + again.getMessage());
+                    }
+                }
+                batch.forEach(record -> record.committed.completeExceptionally(e));
+            }
+            batch.clear();
+        }
+    }
+
+    // Method to write one encoded record at the segment's position; tests override it to fail partway through
+    void writeRecord(FileChannel segment, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            segment.write(data);
+        }
+    }
+
+    // Method to cut whatever a failed batch wrote back off the journal, including segments it rolled over to
+    // Recovery stops at the first bad record of a segment and opening the last segment truncates there, so a
+    // batch written after a half-written record would be lost on restart; its posters were also told it failed
+    private void discardFailedBatch() throws IOException {
+        segment.close();
+        for (long number = segmentNumber; number > batchSegment; number--) {
+            Files.deleteIfExists(segmentPath(number));
+        }
+        openSegment(batchSegment, batchStart);
+        batchStart = -1;
+    }
+
+    // Method to load one committed message back from disk, given the location append or recover reported
+    public Message read(long location, Function<String, Group> groupsById) throws IOException {
+        long number = location >>> OFFSET_BITS;
+        long offset = location & OFFSET_MASK;
+        FileChannel channel;
+        try {
+            channel = readers.computeIfAbsent(number, n -> {
+                try {
+                    return FileChannel.open(segmentPath(n), StandardOpenOption.READ);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // Positional reads leave the shared channel's position alone, so concurrent loads are safe
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, offset);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + header.getInt(0));
+        readFully(channel, record, offset);
+        record.flip();
+        Message message = readRecord(record, groupsById);
+        if (message == null) {
+            throw new IOException("Corrupt journal record at segment " + number + " offset " + offset);
+        }
+        return message;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Journal record cut short at offset " + offset);
+            }
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        segment.force(false);
+        segment.close();
+        openSegment(segmentNumber + 1, 0);
+    }
+
+    private void openSegment(long number, long position) throws IOException {
+        segment = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (segment.size() > position) {
+            segment.truncate(position);
+        }
+        segment.position(position);
+        segmentNumber = number;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(Comparator.comparingLong(MessageJournal::segmentNumber));
+        return segments;
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Record body: id, post date (epoch second + nano, UTC), then group ID, sender, subject and content as UTF-8
+    private static ByteBuffer encode(Message message) {
+        byte[] groupId = message.getGroup().getId().getBytes(StandardCharsets.UTF_8);
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] subject = message.getSubject().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 4 + 8 + 4 + 4 * 4 + groupId.length + sender.length + subject.length + content.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + bodyLength);
+        buffer.putInt(bodyLength);
+        buffer.putInt(0); // CRC placeholder, filled in below
+        buffer.putInt(message.getId());
+        buffer.putLong(message.getPostDate().toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(message.getPostDate().getNano());
+        putBytes(buffer, groupId);
+        putBytes(buffer, sender);
+        putBytes(buffer, subject);
+        putBytes(buffer, content);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_BYTES, bodyLength);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    // Method to parse the record at the buffer's position, or return null at the end of the valid data
+    // A message whose group no longer exists comes back with a null group
+    private static Message readRecord(ByteBuffer buffer, Function<String, Group> groupsById) {
+        if (buffer.remaining() < HEADER_BYTES) {
+            return null;
+        }
+        int start = buffer.position();
+        int bodyLength = buffer.getInt(start);
+        int expectedCrc = buffer.getInt(start + 4);
+        if (bodyLength <= 0 || bodyLength > buffer.remaining() - HEADER_BYTES) {
+            return null;
+        }
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_BYTES).limit(start + HEADER_BYTES + bodyLength);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != expectedCrc) {
+            return null;
+        }
+
+        try {
+            int id = body.getInt();
+            LocalDateTime postDate = LocalDateTime.ofEpochSecond(body.getLong(), body.getInt(), ZoneOffset.UTC);
+            Group group = groupsById.apply(getString(body));
+            String sender = getString(body);
+            String subject = getString(body);
+            String content = getString(body);
+            buffer.position(start + HEADER_BYTES + bodyLength);
+            return new Message(id, sender, subject, content, postDate, group);
+        } catch (RuntimeException e) {
+            // Lengths inside a record that passed its CRC should never be off, but never trust the disk
+            return null;
+        }
+    }
+
+    private static String getString(ByteBuffer body) {
+        int length = body.getInt();
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,389 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+// Non-blocking engine: one selector thread multiplexes every socket and a small worker pool runs the commands
+// An idle client only costs its channel and a Connection object, so tens of thousands fit on one box
+public class NioEngine implements ConnectionEngine {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Clients that never send a newline get disconnected instead of growing a buffer forever
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int ACCEPT_BACKLOG = 1024;
+    // Events a worker handles for one client before yielding to others
+    private static final int MAX_EVENTS_PER_TURN = 64;
+    // Stop reading from a client with this many unprocessed lines until the workers catch up
+    private static final int MAX_PENDING_LINES = 256;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    // Markers queued alongside input lines so open/close reach the session in order
+    private static final Object OPENED = new Object();
+    private static final Object CLOSED = new Object();
+
+    private final int workerCount;
+    private Selector selector;
+    private ExecutorService workers;
+
+    public NioEngine(int workerCount) {
+        this.workerCount = Math.max(1, workerCount);
+    }
+
+    @Override
+    public void serve(int port, SessionFactory factory) throws IOException {
+        workers = Executors.newFixedThreadPool(workerCount);
+        try (Selector sel = Selector.open(); ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            selector = sel;
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Bulletin Board Server is running on port " + port
+                + " (nio engine, " + workerCount + " workers)");
+
+            // Reads from every socket go through this one buffer, only partial lines are copied out
+            ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(serverChannel, factory);
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushOutbound();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Connection was closed by a worker while its key was selected
+                    }
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // Method to register every pending connection with the selector
+    private void accept(ServerSocketChannel serverChannel, SessionFactory factory) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connection.session = factory.create(connection);
+            connection.dispatch(OPENED);
+        }
+    }
+
+    // State for one accepted socket
+    private final class Connection implements Transport {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private Session session;
+        // Bytes of a line still waiting for its newline, null while the client is idle
+        private ByteArrayOutputStream partialLine;
+        // Events for the session, drained by at most one worker at a time to keep them ordered
+        private final Queue<Object> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Set while the session waits on a slow operation (see continueWith); the inbox stays untouched until then
+        private volatile boolean waiting;
+        // What to run once that operation completes, left here by whichever thread completed it
+        private volatile Runnable continuation;
+        private final AtomicInteger pendingLines = new AtomicInteger();
+        // True while reads are paused because pendingLines hit its limit, guarded by this
+        private boolean readPaused;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private boolean sessionClosed;
+        // Output the socket could not take yet, guarded by this
+        // Holds at most one drained batch; the session's own queue keeps the rest while this is non-empty
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private final ChannelOutputStream output = new ChannelOutputStream(this);
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Method to read what is available and hand every complete line to the workers (selector thread)
+        void read(ByteBuffer buffer) {
+            buffer.clear();
+            int count;
+            try {
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                close();
+                return;
+            }
+
+            byte[] bytes = buffer.array();
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                if (bytes[i] == '\n') {
+                    pendingLines.incrementAndGet();
+                    dispatch(decodeLine(bytes, start, i));
+                    start = i + 1;
+                }
+            }
+            if (start < count) {
+                if (partialLine == null) {
+                    partialLine = new ByteArrayOutputStream();
+                }
+                partialLine.write(bytes, start, count - start);
+                if (partialLine.size() > MAX_LINE_BYTES) {
+                    close();
+                    return;
+                }
+            }
+
+            // A client sending faster than its commands run gets TCP backpressure, like a blocking reader would
+            // Checked under the lock so a worker that just caught up cannot miss the pause
+            synchronized (this) {
+                if (pendingLines.get() >= MAX_PENDING_LINES) {
+                    readPaused = true;
+                    updateInterest();
+                }
+            }
+        }
+
+        // Method to turn the bytes before a newline (plus any earlier partial read) into a String
+        private String decodeLine(byte[] bytes, int start, int end) {
+            if (partialLine != null) {
+                partialLine.write(bytes, start, end - start);
+                bytes = partialLine.toByteArray();
+                start = 0;
+                end = bytes.length;
+                partialLine = null;
+            }
+            // Accept both \n and \r\n line endings like BufferedReader.readLine()
+            if (end > start && bytes[end - 1] == '\r') {
+                end--;
+            }
+            return new String(bytes, start, end - start, CHARSET);
+        }
+
+        // Method to queue an event and make sure a worker is draining this connection
+        void dispatch(Object event) {
+            inbox.add(event);
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int handled = 0;
+            while (handled < MAX_EVENTS_PER_TURN) {
+                Runnable resume = continuation;
+                if (resume != null) {
+                    // The operation the session was waiting on is done; finish the command before any later event
+                    continuation = null;
+                    waiting = false;
+                    run(resume);
+                } else if (waiting) {
+                    break;
+                } else {
+                    Object event = inbox.poll();
+                    if (event == null) {
+                        break;
+                    }
+                    deliver(event);
+                }
+                handled++;
+            }
+            resumeReading();
+
+            if (hasWork()) {
+                // Still busy: go to the back of the line so one chatty client cannot hog a worker
+                workers.execute(this::drain);
+                return;
+            }
+            scheduled.set(false);
+            // Re-check in case the selector queued an event or an operation completed after the last poll
+            if (hasWork() && scheduled.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private boolean hasWork() {
+            return continuation != null || (!waiting && !inbox.isEmpty());
+        }
+
+        @Override
+        public <T> void continueWith(CompletableFuture<T> future, BiConsumer<? super T, ? super Throwable> then) {
+            // Only called by the session, so from inside drain; the draining worker stops once it sees this
+            waiting = true;
+            future.whenComplete((value, error) -> {
+                continuation = () -> then.accept(value, error instanceof CompletionException ? error.getCause() : error);
+                // Already done when called, the current drain picks it up; otherwise a worker comes back for it
+                if (scheduled.compareAndSet(false, true)) {
+                    workers.execute(this::drain);
+                }
+            });
+        }
+
+        private synchronized void resumeReading() {
+            if (readPaused && pendingLines.get() < MAX_PENDING_LINES / 2) {
+                readPaused = false;
+                updateInterest();
+            }
+        }
+
+        private void deliver(Object event) {
+            if (sessionClosed) {
+                return;
+            }
+            if (event == OPENED) {
+                run(session::onOpen);
+            } else if (event == CLOSED) {
+                sessionClosed = true;
+                run(session::onClose);
+            } else {
+                pendingLines.decrementAndGet();
+                run(() -> session.onLine((String) event));
+            }
+        }
+
+        private void run(Runnable sessionCall) {
+            try {
+                sessionCall.run();
+            } catch (RuntimeException e) {
+                // Same outcome as a crashed handler thread: log it and drop the client
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        @Override
+        public OutputStream output() {
+            return output;
+        }
+
+        @Override
+        public Executor writerExecutor() {
+            // Channel writes never block, so whoever produced the output writes it right away
+            // A full socket leaves the rest queued and OP_WRITE picks it up later
+            return Runnable::run;
+        }
+
+        @Override
+        public synchronized boolean isBacklogged() {
+            return !outbound.isEmpty();
+        }
+
+        // Method to queue output and push as much of it as the socket accepts right now
+        synchronized void send(List<ByteBuffer> data) {
+            if (closed.get()) {
+                return;
+            }
+            outbound.addAll(data);
+            writeOutbound();
+        }
+
+        // Called from the selector when the socket becomes writable again
+        void flushOutbound() {
+            boolean drained;
+            synchronized (this) {
+                boolean backlogged = !outbound.isEmpty();
+                writeOutbound();
+                drained = backlogged && outbound.isEmpty();
+            }
+            // Let the session refill the socket now that the backlog is gone
+            if (drained && !closed.get()) {
+                session.onWritable();
+            }
+        }
+
+        private void writeOutbound() {
+            try {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer head = outbound.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    outbound.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        // Called with this held whenever the backlog or the read pause changes
+        private void updateInterest() {
+            // Only ask for OP_WRITE while there is a backlog, otherwise the selector would spin
+            int ops = (readPaused ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            try {
+                if (key.interestOps() != ops) {
+                    key.interestOps(ops);
+                    selector.wakeup();
+                }
+            } catch (CancelledKeyException e) {
+                // Closed concurrently, nothing left to flush
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing socket: " + e.getMessage());
+                }
+                dispatch(CLOSED);
+            }
+        }
+    }
+
+    // Stream handed to the session: collects written frames and sends them to the channel on flush
+    // Frames are wrapped rather than copied, so callers must not reuse an array after writing it
+    private static final class ChannelOutputStream extends OutputStream {
+        private final Connection connection;
+        private final List<ByteBuffer> pending = new ArrayList<>();
+
+        ChannelOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) {
+            pending.add(ByteBuffer.wrap(new byte[] {(byte) b}));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (len > 0) {
+                pending.add(ByteBuffer.wrap(b, off, len));
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<ByteBuffer> batch = new ArrayList<>(pending);
+            pending.clear();
+            connection.send(batch);
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Helper type: bounded queue of encoded frames waiting to be written to one client
+// Producers (the client's own commands and other clients' broadcasts) never touch the socket,
+// a writer drains the queue in batches and flushes once per batch
+public class OutboundQueue {
+    // What to do when a frame would push the queue past its byte budget
+    public enum OverflowPolicy {
+        // Discard the oldest queued frames to make room
+        DROP_OLDEST,
+        // Drop the client, it cannot keep up
+        DISCONNECT,
+        // Discard the oldest frames but tell the client how many it missed
+        COALESCE;
+
+        public static OverflowPolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+    // Server-wide counters across every client queue
+    private static final AtomicLong totalQueuedBytes = new AtomicLong();
+    private static final AtomicLong totalDroppedFrames = new AtomicLong();
+    private static final LongAdder totalSentBytes = new LongAdder();
+
+    private final ConnectionEngine.Transport transport;
+    private final int capacityBytes;
+    private final OverflowPolicy policy;
+    // Frames and counters below are guarded by this
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private long queuedBytes;
+    private long droppedFrames;
+    // Frames discarded under COALESCE since the client last heard about it
+    private int skippedFrames;
+    private boolean closed;
+    // Set by closeAfterFlush: accept nothing new and disconnect once the queue is empty
+    private boolean closing;
+    // Run once everything queued has reached the socket, see whenDrained
+    private Runnable drainedTask;
+    // True while a drain is scheduled or running, so at most one writer touches the transport
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public OutboundQueue(ConnectionEngine.Transport transport, int capacityBytes, OverflowPolicy policy) {
+        this.transport = transport;
+        this.capacityBytes = capacityBytes;
+        this.policy = policy;
+    }
+
+    // Method to encode a line once so the same frame can be sent to any number of clients
+    // Queues only ever read frames, so one array may sit in many queues at once
+    public static byte[] encodeLine(String line) {
+        return (line + System.lineSeparator()).getBytes(CHARSET);
+    }
+
+    // Method to get a Writer whose every flush becomes one queued frame
+    public Writer asWriter() {
+        return new FrameWriter();
+    }
+
+    // Method to queue a frame for the client; returns false if it was dropped
+    public boolean send(byte[] frame) {
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed || closing) {
+                return false;
+            }
+            if (queuedBytes + frame.length > capacityBytes) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    disconnect = true;
+                    droppedFrames++;
+                    totalDroppedFrames.incrementAndGet();
+                } else {
+                    // Make room by dropping from the head, the oldest output is the least useful
+                    while (!frames.isEmpty() && queuedBytes + frame.length > capacityBytes) {
+                        discard(frames.poll());
+                    }
+                }
+            }
+            if (!disconnect) {
+                if (frame.length > capacityBytes) {
+                    // Bigger than the whole budget, so it can never be queued
+                    droppedFrames++;
+                    totalDroppedFrames.incrementAndGet();
+                    return false;
+                }
+                frames.add(frame);
+                queuedBytes += frame.length;
+                totalQueuedBytes.addAndGet(frame.length);
+            }
+        }
+
+        if (disconnect) {
+            disconnect();
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    private void discard(byte[] frame) {
+        queuedBytes -= frame.length;
+        totalQueuedBytes.addAndGet(-frame.length);
+        droppedFrames++;
+        totalDroppedFrames.incrementAndGet();
+        if (policy == OverflowPolicy.COALESCE) {
+            skippedFrames++;
+        }
+    }
+
+    // Method to run a task once every frame queued so far has been written, to pace bulk output such as history
+    // A later call replaces a task that has not run yet; the task runs on the writer, so it should only hand work off
+    public void whenDrained(Runnable task) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            drainedTask = task;
+        }
+        schedule();
+    }
+
+    // Method to ask for another drain, e.g. once a backlogged transport can take more output
+    public void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            transport.writerExecutor().execute(this::drain);
+        }
+    }
+
+    // Method to write everything queued so far as one batch with a single flush, repeated until empty
+    private void drain() {
+        OutputStream output = transport.output();
+        while (true) {
+            // Leave frames here while the socket is still busy with the last batch, onWritable reschedules
+            List<byte[]> batch = transport.isBacklogged() ? Collections.emptyList() : takeBatch();
+            if (batch.isEmpty()) {
+                if (isDrainedForClose()) {
+                    disconnect();
+                }
+                Runnable drained = takeDrainedTask();
+                if (drained != null) {
+                    drained.run();
+                }
+                scheduled.set(false);
+                // Re-check in case a frame arrived or the backlog cleared after the check above
+                if (hasWork() && scheduled.compareAndSet(false, true)) {
+                    continue;
+                }
+                return;
+            }
+
+            try {
+                long sent = 0;
+                for (byte[] frame : batch) {
+                    output.write(frame);
+                    sent += frame.length;
+                }
+                output.flush();
+                totalSentBytes.add(sent);
+            } catch (IOException e) {
+                // The reader side notices the broken socket and cleans up the session
+                close();
+                disconnect();
+                scheduled.set(false);
+                return;
+            }
+        }
+    }
+
+    private synchronized boolean isDrainedForClose() {
+        return closing && frames.isEmpty() && skippedFrames == 0 && !transport.isBacklogged();
+    }
+
+    private synchronized Runnable takeDrainedTask() {
+        if (closed || !frames.isEmpty() || skippedFrames > 0 || transport.isBacklogged()) {
+            return null;
+        }
+        Runnable task = drainedTask;
+        drainedTask = null;
+        return task;
+    }
+
+    private synchronized boolean hasWork() {
+        return !closed && (!frames.isEmpty() || skippedFrames > 0 || drainedTask != null) && !transport.isBacklogged();
+    }
+
+    private synchronized List<byte[]> takeBatch() {
+        if (closed || (frames.isEmpty() && skippedFrames == 0)) {
+            return Collections.emptyList();
+        }
+        List<byte[]> batch = new ArrayList<>(frames.size() + 1);
+        if (skippedFrames > 0) {
+            batch.add(("(" + skippedFrames + " messages skipped because your connection fell behind)"
+                + System.lineSeparator()).getBytes(CHARSET));
+            skippedFrames = 0;
+        }
+        batch.addAll(frames);
+        frames.clear();
+        totalQueuedBytes.addAndGet(-queuedBytes);
+        queuedBytes = 0;
+        return batch;
+    }
+
+    private void disconnect() {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            System.out.println("Error closing socket: " + e.getMessage());
+        }
+    }
+
+    // Method to disconnect the client once everything already queued has been written
+    public void closeAfterFlush() {
+        synchronized (this) {
+            closing = true;
+        }
+        schedule();
+    }
+
+    // Method to discard anything still queued once the client is gone
+    public synchronized void close() {
+        closed = true;
+        drainedTask = null;
+        totalQueuedBytes.addAndGet(-queuedBytes);
+        queuedBytes = 0;
+        frames.clear();
+    }
+
+    public synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized long droppedFrames() {
+        return droppedFrames;
+    }
+
+    public static long totalQueuedBytes() {
+        return totalQueuedBytes.get();
+    }
+
+    public static long totalDroppedFrames() {
+        return totalDroppedFrames.get();
+    }
+
+    // Bytes handed to client sockets since startup
+    public static long totalSentBytes() {
+        return totalSentBytes.sum();
+    }
+
+    // Writer that buffers characters and queues them as one encoded frame on every flush
+    private final class FrameWriter extends Writer {
+        private final StringBuilder pending = new StringBuilder();
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            pending.append(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() {
+            if (pending.length() == 0) {
+                return;
+            }
+            byte[] frame = pending.toString().getBytes(CHARSET);
+            pending.setLength(0);
+            send(frame);
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
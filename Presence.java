@@ -0,0 +1,157 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+// Helper type: tells a group's members who joined and left it
+// Notices are gathered per group over a short window and sent as one summary line, so when thousands of users
+// reconnect at once every member gets a line per window rather than a line per user
+// A user who leaves and comes back within the window, as on a reconnect, is left out of the summary
+// Groups with more than quietAbove members get no notices at all
+public class Presence {
+    // Names spelled out in a summary line; the rest are only counted
+    private static final int NAMES_PER_LINE = 5;
+
+    // Server-wide counters: join and leave events seen, and the lines they were sent as
+    private static final LongAdder events = new LongAdder();
+    private static final LongAdder lines = new LongAdder();
+    // One thread sends the summaries of every group when their windows close
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // One user's membership over a window: whether they were a member when it opened, and whether they are now
+    private static final class Change {
+        private final boolean wasMember;
+        private boolean isMember;
+
+        Change(boolean wasMember, boolean isMember) {
+            this.wasMember = wasMember;
+            this.isMember = isMember;
+        }
+    }
+
+    // Changes to one group since its last summary, in the order users first showed up
+    private static final class Batch {
+        private final Group group;
+        private final LinkedHashMap<String, Change> changes = new LinkedHashMap<>();
+
+        Batch(Group group) {
+            this.group = group;
+        }
+    }
+
+    private final int windowMillis;
+    private final int quietAbove;
+    private final BiConsumer<Group, String> broadcast;
+    private final ToIntFunction<Group> groupSize;
+    // Open windows by group ID; a batch is only touched inside compute and after being removed, never both
+    private final ConcurrentHashMap<String, Batch> pending = new ConcurrentHashMap<>();
+
+    // A window of 0 sends every notice on its own straight away; a quietAbove of 0 never silences a group
+    public Presence(int windowMillis, int quietAbove, BiConsumer<Group, String> broadcast, ToIntFunction<Group> groupSize) {
+        this.windowMillis = windowMillis;
+        this.quietAbove = quietAbove;
+        this.broadcast = broadcast;
+        this.groupSize = groupSize;
+    }
+
+    // Method to announce a join; the joining user is a member by now, so they hear about it with everyone else
+    public void joined(String username, Group group) {
+        record(username, group, true);
+    }
+
+    public void left(String username, Group group) {
+        record(username, group, false);
+    }
+
+    // Method to note one event, or send it straight away if there is no window
+    private void record(String username, Group group, boolean joined) {
+        events.increment();
+        if (quietAbove > 0 && groupSize.applyAsInt(group) > quietAbove) {
+            return;
+        }
+        if (windowMillis <= 0) {
+            lines.increment();
+            broadcast.accept(group, notice(username, joined ? "joined" : "left", group));
+            return;
+        }
+        pending.compute(group.getId(), (id, batch) -> {
+            if (batch == null) {
+                batch = new Batch(group);
+                timer.schedule(() -> flush(id), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            Change change = batch.changes.get(username);
+            if (change == null) {
+                batch.changes.put(username, new Change(!joined, joined));
+            } else {
+                change.isMember = joined;
+            }
+            return batch;
+        });
+    }
+
+    // Method to send every open window's summary now instead of when it closes
+    public void flush() {
+        for (String groupId : pending.keySet()) {
+            flush(groupId);
+        }
+    }
+
+    private void flush(String groupId) {
+        Batch batch = pending.remove(groupId);
+        if (batch == null) {
+            return;
+        }
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        batch.changes.forEach((username, change) -> {
+            if (change.isMember != change.wasMember) {
+                (change.isMember ? joined : left).add(username);
+            }
+        });
+        StringBuilder summary = new StringBuilder();
+        if (!joined.isEmpty()) {
+            summary.append(notice(names(joined), "joined", batch.group));
+        }
+        if (!left.isEmpty()) {
+            summary.append(notice(names(left), "left", batch.group));
+        }
+        if (summary.length() > 0) {
+            lines.increment();
+            broadcast.accept(batch.group, summary.toString());
+        }
+    }
+
+    private static String notice(String who, String verb, Group group) {
+        return who + " " + verb + " " + group.getName() + "\n";
+    }
+
+    // Method to list names as "a, b and c", or "a, b, c, d, e and 7 others" for a long list
+    private static String names(List<String> usernames) {
+        int shown = Math.min(usernames.size(), NAMES_PER_LINE);
+        int others = usernames.size() - shown;
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                names.append(i == shown - 1 && others == 0 ? " and " : ", ");
+            }
+            names.append(usernames.get(i));
+        }
+        if (others > 0) {
+            names.append(" and ").append(others).append(others == 1 ? " other" : " others");
+        }
+        return names.toString();
+    }
+
+    public static long events() {
+        return events.sum();
+    }
+
+    public static long lines() {
+        return lines.sum();
+    }
+}
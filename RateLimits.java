@@ -0,0 +1,114 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+// Helper type: how fast clients may post and run read commands, per connection and per username
+// Every limit is a token bucket (see TokenBucket); a command must get a token from its connection's
+// bucket and from the bucket its username shares across all of that user's connections
+// A rate of 0 turns that limit off
+public class RateLimits {
+    // No limits at all, for tools that drive a client in-process
+    public static final RateLimits NONE = new RateLimits(0, 0, 0, 0, 0, 0, 0, 0);
+
+    private final double postsPerSecond;
+    private final int postBurst;
+    private final double readsPerSecond;
+    private final int readBurst;
+    private final double userPostsPerSecond;
+    private final int userPostBurst;
+    private final double userReadsPerSecond;
+    private final int userReadBurst;
+    // Buckets of every connected username, dropped with the user's last connection
+    private final ConcurrentHashMap<String, UserBuckets> users = new ConcurrentHashMap<>();
+
+    // Buckets one username shares between its connections
+    private static final class UserBuckets {
+        private final TokenBucket posts;
+        private final TokenBucket reads;
+        // Changed only inside compute on the users map
+        private int connections;
+
+        UserBuckets(TokenBucket posts, TokenBucket reads) {
+            this.posts = posts;
+            this.reads = reads;
+        }
+    }
+
+    public RateLimits(double postsPerSecond, int postBurst, double readsPerSecond, int readBurst,
+            double userPostsPerSecond, int userPostBurst, double userReadsPerSecond, int userReadBurst) {
+        this.postsPerSecond = postsPerSecond;
+        this.postBurst = postBurst;
+        this.readsPerSecond = readsPerSecond;
+        this.readBurst = readBurst;
+        this.userPostsPerSecond = userPostsPerSecond;
+        this.userPostBurst = userPostBurst;
+        this.userReadsPerSecond = userReadsPerSecond;
+        this.userReadBurst = userReadBurst;
+    }
+
+    // Method to read the limits from the limit.* options
+    public static RateLimits fromConfig() {
+        return new RateLimits(
+            ServerConfig.getInt("limit.postsPerSecond", 20), ServerConfig.getInt("limit.postBurst", 40),
+            ServerConfig.getInt("limit.readsPerSecond", 50), ServerConfig.getInt("limit.readBurst", 100),
+            ServerConfig.getInt("limit.userPostsPerSecond", 40), ServerConfig.getInt("limit.userPostBurst", 80),
+            ServerConfig.getInt("limit.userReadsPerSecond", 100), ServerConfig.getInt("limit.userReadBurst", 200));
+    }
+
+    // Method to make the buckets for a newly registered connection; close the result when the client leaves
+    public Connection connect(String username) {
+        UserBuckets user = users.compute(username, (name, buckets) -> {
+            if (buckets == null) {
+                buckets = new UserBuckets(bucket(userPostsPerSecond, userPostBurst), bucket(userReadsPerSecond, userReadBurst));
+            }
+            buckets.connections++;
+            return buckets;
+        });
+        return new Connection(username, user);
+    }
+
+    private static TokenBucket bucket(double perSecond, int burst) {
+        return perSecond > 0 ? new TokenBucket(perSecond, burst) : null;
+    }
+
+    // Helper type: the limits one connection checks before running a command
+    // Only the connection's own thread uses it, but the username's buckets may be shared, hence the atomic buckets
+    public final class Connection {
+        private final String username;
+        private final UserBuckets user;
+        private final TokenBucket posts = bucket(postsPerSecond, postBurst);
+        private final TokenBucket reads = bucket(readsPerSecond, readBurst);
+
+        private Connection(String username, UserBuckets user) {
+            this.username = username;
+            this.user = user;
+        }
+
+        // Method to charge one command; returns 0 if it may run, otherwise how many nanoseconds to wait
+        public long check(CommandLine.Limit limit) {
+            switch (limit) {
+                case POSTS:
+                    return take(posts, user.posts);
+                case READS:
+                    return take(reads, user.reads);
+                default:
+                    return 0;
+            }
+        }
+
+        private long take(TokenBucket own, TokenBucket shared) {
+            if (own == null && shared == null) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long wait = own != null ? own.take(now) : 0;
+            if (wait == 0 && shared != null) {
+                wait = shared.take(now);
+            }
+            return wait;
+        }
+
+        // Method to give up the connection's share of its username's buckets
+        public void close() {
+            users.computeIfPresent(username, (name, buckets) -> --buckets.connections == 0 ? null : buckets);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Helper type: inverted index over the subject and content of one group's messages
+// Every word maps to the sorted history slots (see MessageHistory) of the messages containing it, kept in
+// plain int arrays; a search intersects the lists from the newest slot down and stops at the requested count
+// Slots below the floor belong to messages evicted from memory and are ignored, then compacted away in bulk
+// Each word's list has its own lock: posters only wait for each other on the words they share, and a search
+// locks just the lists of its own words, always in word order so two searches never wait on each other in a circle
+public class SearchIndex {
+    // Words shorter than this are too common to be worth indexing; longer ones are cut to the maximum
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 32;
+    // Dead slots are only compacted out of the lists after the floor has moved this far
+    private static final int COMPACT_INTERVAL = 4096;
+
+    // Sorted slots of the messages containing one word; entries before start are dead
+    // Everything here is guarded by lock; a list emptied by compaction is marked removed and left for a new one
+    private static final class Postings {
+        private final String term;
+        private final ReentrantLock lock = new ReentrantLock();
+        private int[] slots = new int[2];
+        private int start;
+        private int end;
+        private boolean removed;
+
+        Postings(String term) {
+            this.term = term;
+        }
+
+        // Posts usually arrive in slot order, so this is almost always an append
+        void add(int slot) {
+            int i = end;
+            while (i > start && slots[i - 1] > slot) {
+                i--;
+            }
+            if (i > start && slots[i - 1] == slot) {
+                // Word repeated within the same message
+                return;
+            }
+            if (end == slots.length) {
+                // Reclaim the dead prefix first, and only grow if that is not enough
+                int live = end - start;
+                int[] target = live >= slots.length / 2 ? new int[slots.length * 2] : slots;
+                System.arraycopy(slots, start, target, 0, live);
+                slots = target;
+                i -= start;
+                end = live;
+                start = 0;
+            }
+            System.arraycopy(slots, i, slots, i + 1, end - i);
+            slots[i] = slot;
+            end++;
+        }
+
+        boolean contains(int slot) {
+            return Arrays.binarySearch(slots, start, end, slot) >= 0;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        // Method to drop every slot below floor, shrinking the array if most of it is now dead
+        void trimBelow(int floor) {
+            int index = Arrays.binarySearch(slots, start, end, floor);
+            start = index >= 0 ? index : -index - 1;
+            int live = end - start;
+            if (live > 0 && live < slots.length / 4) {
+                slots = Arrays.copyOfRange(slots, start, start + Math.max(2, live * 2));
+                start = 0;
+                end = live;
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Postings> postings = new ConcurrentHashMap<>();
+    // Lowest slot still searchable, and where it was when the lists were last compacted (guarded by this)
+    private volatile int floor;
+    private int compactedFloor;
+
+    // Method to split text into lowercase words of letters and digits; repeated words are ignored when indexing
+    public static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        addTerms(text, terms);
+        return terms;
+    }
+
+    private static void addTerms(String text, List<String> terms) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i - start >= MIN_TERM_LENGTH) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    // Method to index one message under its history slot
+    public void add(int slot, String subject, String content) {
+        List<String> terms = new ArrayList<>();
+        addTerms(subject, terms);
+        addTerms(content, terms);
+        for (String term : terms) {
+            boolean added = false;
+            while (!added) {
+                Postings list = postings.computeIfAbsent(term, Postings::new);
+                list.lock.lock();
+                try {
+                    // Compaction may have just dropped this list; go round again for its replacement
+                    if (!list.removed) {
+                        list.add(slot);
+                        added = true;
+                    }
+                } finally {
+                    list.lock.unlock();
+                }
+            }
+        }
+    }
+
+    // Method to stop finding messages below a slot because they left memory
+    public synchronized void trimBelow(int slot) {
+        floor = Math.max(floor, slot);
+        if (floor - compactedFloor < COMPACT_INTERVAL) {
+            return;
+        }
+        compactedFloor = floor;
+        // One list at a time, so posters and searches only ever wait for the list being compacted
+        for (Postings list : postings.values()) {
+            list.lock.lock();
+            try {
+                list.trimBelow(compactedFloor);
+                if (list.size() == 0) {
+                    list.removed = true;
+                    postings.remove(list.term, list);
+                }
+            } finally {
+                list.lock.unlock();
+            }
+        }
+    }
+
+    // Method to find the newest messages containing every word of a query, newest first
+    // Only slots below endSlot are considered, so callers never see a message that is still being written
+    public int[] search(String query, int limit, int endSlot) {
+        List<String> terms = terms(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+
+        Postings[] lists = new Postings[terms.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings.get(terms.get(i));
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        Arrays.sort(lists, Comparator.comparing(list -> list.term));
+        int locked = 0;
+        try {
+            for (Postings list : lists) {
+                list.lock.lock();
+                locked++;
+                if (list.removed) {
+                    return new int[0];
+                }
+            }
+            // Walk the rarest word's list and probe the others, so the work is bounded by the rarest word
+            Arrays.sort(lists, Comparator.comparingInt(Postings::size));
+            Postings rarest = lists[0];
+
+            int[] hits = new int[Math.min(limit, rarest.size())];
+            int found = 0;
+            for (int i = rarest.end - 1; i >= rarest.start && found < hits.length; i--) {
+                int slot = rarest.slots[i];
+                if (slot < floor) {
+                    break;
+                }
+                if (slot >= endSlot) {
+                    continue;
+                }
+                boolean everyTerm = true;
+                for (int j = 1; j < lists.length && everyTerm; j++) {
+                    everyTerm = lists[j].contains(slot);
+                }
+                if (everyTerm) {
+                    hits[found++] = slot;
+                }
+            }
+            return found == hits.length ? hits : Arrays.copyOf(hits, found);
+        } finally {
+            for (int i = 0; i < locked; i++) {
+                lists[i].lock.unlock();
+            }
+        }
+    }
+}
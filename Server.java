@@ -1,353 +1,1140 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 public class Server {
     private static final int PORT = 5000;
-    // CopyOnWriteArrayList allows safe concurrent modification
-    private static final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
-    private static final List<Group> groups = new ArrayList<>();
-    private static final ConcurrentHashMap<String, List<Message>> groupMessages = new ConcurrentHashMap<>();
+    // Per-client outbound buffer budget and what happens to clients that exceed it, set from config in main
+    private static int outboundCapacity = 256 * 1024;
+    private static OutboundQueue.OverflowPolicy outboundPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    // Concurrent set allows safe modification without copying on every connect/disconnect
+    private static final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    // Every group with its message history and members (group -> clients side of the membership index),
+    // sharded by ID so lookups never lock and fan-out only visits group members
+    // Package-private, like the handler methods below, so the benchmark harness can drive it directly
+    static final GroupRegistry<ClientHandler> groupRegistry = new GroupRegistry<>();
+    // The group every user is put in on connect
+    private static final Group publicGroup = new Group("0", "Public Group");
+    // Groups shown per page of %groups
+    private static final int GROUPS_PER_PAGE = 50;
+    private static final int MAX_GROUP_NAME_LENGTH = 64;
+    // Messages per %history page when no limit is given, and the largest limit allowed
+    private static final int HISTORY_PAGE = 50;
+    private static final int MAX_HISTORY_PAGE = 10000;
+    // Most messages one %search returns
+    private static final int SEARCH_RESULTS = 20;
+    // Characters of history queued per chunk, at most a quarter of the client's outbound budget
+    private static final int HISTORY_CHUNK_CHARS = 16 * 1024;
+    // Recent messages replayed to a client when it joins a group, set from config in main
+    private static int replayOnJoin = 2;
+    // Join and leave notices, gathered per group over a short window; replaced from config in main
+    static Presence presence = newPresence(250, 0);
+    // How fast each connection and username may post and read; replaced from config in main
+    static RateLimits rateLimits = RateLimits.fromConfig();
+    // Sessions of dropped clients, kept for a while so they can resume; replaced from config in main
+    private static Sessions<ClientHandler> sessions = new Sessions<>(120_000);
+    // Threads that read and queue history chunks after the first, so a long replay never holds up a client's own thread
+    private static final ExecutorService historyReaders = Executors.newFixedThreadPool(
+        Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "history-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    // Durable copy of every post, null when the journal is turned off
+    private static MessageJournal journal;
+    // Durable record of the groups users created, null when the journal is turned off
+    private static GroupLog groupLog;
+    // Link to the other nodes when running as a cluster, null on a single server
+    private static ClusterBus cluster;
+    // Users allowed to run %stats, set from config in main; empty lets everyone
+    private static Set<String> statsUsers = Collections.emptySet();
 
     // Initialize groups when server starts
     static {
         // Add default public group
-        Group publicGroup = new Group("0", "Public Group");
-        groups.add(publicGroup);
-        groupMessages.put(publicGroup.getId(), new ArrayList<>());
+        groupRegistry.add(publicGroup);
 
         // Add 5 private groups for Part 2
         for (int i = 1; i <= 5; i++) {
-            Group privateGroup = new Group(String.valueOf(i), "Private Group " + i);
-            groups.add(privateGroup);
-            groupMessages.put(privateGroup.getId(), new ArrayList<>());
+            groupRegistry.add(new Group(String.valueOf(i), "Private Group " + i));
         }
     }
 
     public static void main(String[] args) {
-        // Initialize server socket
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Bulletin Board Server is running on port " + PORT);
-
-            // Infinite loop to continuously accept client connections
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                // Create a new ClientHandler for each connected client
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                // Add the client handler to list of active clients
-                clients.add(clientHandler);
-                // Start a new thread for each client to handle concurrent connections
-                new Thread(clientHandler).start();
+        try {
+            ServerConfig.applyArgs(args);
+            outboundCapacity = ServerConfig.getInt("outbound.capacity", outboundCapacity);
+            outboundPolicy = OutboundQueue.OverflowPolicy.parse(ServerConfig.getString("outbound.policy", "drop-oldest"));
+            replayOnJoin = ServerConfig.getInt("history.replayOnJoin", replayOnJoin);
+            rateLimits = RateLimits.fromConfig();
+            sessions = new Sessions<>(ServerConfig.getLong("session.graceSeconds", 120) * 1000);
+            presence = newPresence(ServerConfig.getInt("presence.windowMs", 250), ServerConfig.getInt("presence.quietAbove", 0));
+            String allowedStatsUsers = ServerConfig.getString("stats.users", "").trim();
+            if (!allowedStatsUsers.isEmpty()) {
+                statsUsers = new HashSet<>(Arrays.asList(allowedStatsUsers.split("\\s*,\\s*")));
             }
+            if (!openJournal()) {
+                return;
+            }
+            openCluster();
+            // Publish counters over JMX and for %stats
+            ServerMetrics.start(clients::size, groupRegistry);
+            // Pick how sockets are served: threads (default), virtual or nio
+            ConnectionEngine engine = ConnectionEngine.forName(ServerConfig.getString("engine", "threads"));
+            // Create a new ClientHandler for each connected client
+            engine.serve(ServerConfig.getInt("port", PORT), ClientHandler::new);
         } catch (IOException e) {
             System.out.println("Error during client handler initialization: " + e.getMessage());
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            System.out.println("Error starting server: " + e.getMessage());
+        }
+    }
+
+    // Method to make the presence notices for this node's clients, see Presence
+    static Presence newPresence(int windowMillis, int quietAbove) {
+        return new Presence(windowMillis, quietAbove, ClientHandler::broadcast, group -> ClientHandler.membersOf(group).size());
+    }
+
+    // Method to restore the board from the group log and message journal and keep journaling new changes
+    private static boolean openJournal() {
+        String directory = ServerConfig.getString("journal.dir", "journal");
+        if (directory.isEmpty() || directory.equalsIgnoreCase("none")) {
+            return true;
+        }
+
+        try {
+            long start = System.nanoTime();
+            journal = new MessageJournal(Paths.get(directory), ServerConfig.getLong("journal.segmentBytes", 64L * 1024 * 1024));
+            // Old messages only stay on the heap up to the budget; the rest are read back from the journal
+            MessageHistory.configureTiering(ServerConfig.getLong("history.memoryBytes", 16L * 1024 * 1024),
+                new ColdStorage(journal, Server::groupById, ServerConfig.getInt("history.cacheEntries", 10000)));
+            // Groups first, so every recovered message finds its group; messages of deleted groups are skipped
+            groupLog = new GroupLog(Paths.get(directory, "groups.log"));
+            groupLog.recover(groupRegistry::add, groupId -> {
+                groupRegistry.remove(groupId);
+                groupRegistry.reserveId(groupId);
+            });
+            int recovered = journal.recover(Server::groupById,
+                (m, location) -> groupRegistry.get(m.getGroup().getId()).history().add(m, location));
+            System.out.println("Recovered " + groupRegistry.size() + " groups and " + recovered + " messages from "
+                + directory + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error opening message journal: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Method to join the cluster when cluster.port is set, so posts, joins and leaves reach every node
+    private static void openCluster() throws IOException {
+        int busPort = ServerConfig.getInt("cluster.port", 0);
+        if (busPort == 0) {
+            return;
+        }
+        List<String> peers = new ArrayList<>();
+        for (String peer : ServerConfig.getString("cluster.peers", "").split(",")) {
+            if (!peer.isBlank()) {
+                peers.add(peer.trim());
+            }
+        }
+
+        // Each node gets its own slice of message and group IDs, so IDs stay unique across the cluster
+        int nodeIndex = ServerConfig.getInt("cluster.nodeIndex", 0);
+        if (nodeIndex < 0 || nodeIndex > peers.size()) {
+            throw new IllegalArgumentException("cluster.nodeIndex must be between 0 and the number of peers");
         }
+        Message.partitionIds(nodeIndex, peers.size() + 1);
+        groupRegistry.partitionIds(nodeIndex, peers.size() + 1);
+
+        String nodeId = ServerConfig.getString("cluster.nodeId", "node-" + nodeIndex);
+        cluster = new ClusterBus(nodeId, busPort, peers, Server::groupById, new RemoteEvents());
+        cluster.start();
+        System.out.println("Cluster node " + nodeId + " listening for peers on port " + busPort);
+    }
+
+    // Applies events relayed from other cluster nodes to the clients connected here
+    private static class RemoteEvents implements ClusterBus.Listener {
+        // Relayed posts being added, most waiting for their journal commit; a post resent after a reconnect may arrive twice
+        private final Set<Integer> savingPosts = ConcurrentHashMap.newKeySet();
+        // Adds committed posts to their history in commit order, which is the order they arrived in,
+        // so the link threads never wait for the disk
+        private final ExecutorService applier = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-apply");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        @Override
+        public void onRemotePost(Message message) {
+            MessageHistory history = historyOf(message.getGroup());
+            if (history == null) {
+                return;
+            }
+            // The same post can arrive on an old link and its replacement at once; claim it before checking the
+            // history so whichever copy comes second sees either the claim or the stored post
+            if (!savingPosts.add(message.getId())) {
+                return;
+            }
+            if (history.contains(message.getId())) {
+                savingPosts.remove(message.getId());
+                return;
+            }
+            if (journal == null) {
+                history.add(message, MessageHistory.NOT_STORED);
+                savingPosts.remove(message.getId());
+                ClientHandler.broadcast(message.getGroup(), message.toString());
+                return;
+            }
+            // The posting node already made it durable; keep a copy here too so it survives our restart
+            // Posts from a busy peer share commit batches like local ones do
+            journal.append(message).whenCompleteAsync((location, error) -> {
+                if (error != null) {
+                    System.out.println("Error saving message from cluster: " + error.getMessage());
+                    location = MessageHistory.NOT_STORED;
+                }
+                history.add(message, location);
+                savingPosts.remove(message.getId());
+                ClientHandler.broadcast(message.getGroup(), message.toString());
+            }, applier);
+        }
+
+        @Override
+        public void onRemoteJoin(String username, Group group, boolean announce) {
+            if (announce) {
+                presence.joined(username, group);
+            }
+        }
+
+        @Override
+        public void onRemoteLeave(String username, Group group) {
+            presence.left(username, group);
+        }
+
+        @Override
+        public void onRemoteDisconnect(String username) {
+            presence.left(username, publicGroup);
+        }
+
+        @Override
+        public boolean onRemoteGroupCreated(Group group) {
+            if (groupRegistry.add(group) == null) {
+                return false;
+            }
+            if (groupLog != null) {
+                try {
+                    groupLog.created(group);
+                } catch (IOException e) {
+                    System.out.println("Error saving group from cluster: " + e.getMessage());
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onRemoteGroupDeleted(Group group, String username) {
+            if (groupLog != null) {
+                try {
+                    groupLog.deleted(group.getId());
+                } catch (IOException e) {
+                    System.out.println("Error saving group deletion from cluster: " + e.getMessage());
+                }
+            }
+            removeGroup(group, username);
+        }
+
+        @Override
+        public Map<String, List<String>> localMembership() {
+            // Read from the groups' member sets, which still hold parked sessions, so peers list the same users
+            // as a local %users does
+            Map<String, List<String>> membership = new HashMap<>();
+            groupRegistry.forEach(entry -> {
+                for (ClientHandler member : entry.members()) {
+                    String username = member.username;
+                    if (username != null) {
+                        membership.computeIfAbsent(username, name -> new ArrayList<>()).add(entry.group().getId());
+                    }
+                }
+            });
+            return membership;
+        }
+
+        @Override
+        public List<Group> createdGroups() {
+            List<Group> created = new ArrayList<>();
+            groupRegistry.forEach(entry -> {
+                if (entry.group().getOwner() != null) {
+                    created.add(entry.group());
+                }
+            });
+            return created;
+        }
+
+        @Override
+        public int newestPostFrom(int idResidue) {
+            // Only the ID column is read, which stays on the heap even for messages tiered out to the journal
+            int[] newest = new int[1];
+            groupRegistry.forEach(entry -> {
+                MessageHistory history = entry.history();
+                for (int slot = 0, end = history.size(); slot < end; slot++) {
+                    int id = history.idAt(slot);
+                    if (id > newest[0] && Message.isFrom(id, idResidue)) {
+                        newest[0] = id;
+                    }
+                }
+            });
+            return newest[0];
+        }
+
+        @Override
+        public void forEachOwnPostAfter(int afterId, Consumer<Message> sink) {
+            // Find every match first, so they go out in ID order across groups; a peer that loses the link
+            // halfway through then reports an ID below every post it has not got
+            List<MessageHistory> histories = new ArrayList<>();
+            groupRegistry.forEach(entry -> histories.add(entry.history()));
+            // ID above the match's number, so sorting puts them in ID order; its history and slot by that number
+            long[] found = new long[64];
+            int[] owners = new int[64];
+            int[] slots = new int[64];
+            int count = 0;
+            for (int h = 0; h < histories.size(); h++) {
+                MessageHistory history = histories.get(h);
+                for (int slot = 0, end = history.size(); slot < end; slot++) {
+                    int id = history.idAt(slot);
+                    if (id > afterId && Message.isFrom(id, Message.idResidue())) {
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, count * 2);
+                            owners = Arrays.copyOf(owners, count * 2);
+                            slots = Arrays.copyOf(slots, count * 2);
+                        }
+                        found[count] = (long) id << 32 | count;
+                        owners[count] = h;
+                        slots[count] = slot;
+                        count++;
+                    }
+                }
+            }
+            Arrays.sort(found, 0, count);
+            for (int i = 0; i < count; i++) {
+                int match = (int) found[i];
+                Message message = histories.get(owners[match]).messageAt(slots[match]);
+                if (message != null) {
+                    sink.accept(message);
+                }
+            }
+        }
+    }
+
+    // Method to return Group object given its exact ID
+    private static Group groupById(String groupId) {
+        GroupRegistry.Entry<ClientHandler> entry = groupRegistry.get(groupId);
+        return entry != null ? entry.group() : null;
+    }
+
+    // Method to get a group's message history, or null if the group has been deleted
+    private static MessageHistory historyOf(Group group) {
+        GroupRegistry.Entry<ClientHandler> entry = groupRegistry.get(group.getId());
+        return entry != null ? entry.history() : null;
+    }
+
+    // Method to take a deleted group off the board, telling its members here
+    // Members are dropped from it without leave notices; there is nobody left to tell
+    private static void removeGroup(Group group, String username) {
+        GroupRegistry.Entry<ClientHandler> entry = groupRegistry.remove(group.getId());
+        if (entry == null) {
+            return;
+        }
+        entry.history().release();
+        byte[] frame = OutboundQueue.encodeLine(group.getName() + " was deleted by " + username + "\n");
+        for (ClientHandler member : entry.members()) {
+            member.joinedGroups.remove(group);
+            member.outbound.send(frame);
+        }
+        ServerMetrics.recordBroadcast(entry.members().size());
     }
 
     // Inner class that handles individual client connections
-    private static class ClientHandler implements Runnable {
-        // Socket for the individual client connection
-        private final Socket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
+    // The connection engine feeds it one input line at a time, so it never touches the socket directly
+    static class ClientHandler implements ConnectionEngine.Session {
+        // Everything sent to this client goes through its bounded queue, so senders never block on the socket
+        // The queue also owns closing the connection on %exit
+        private final OutboundQueue outbound;
+        private final PrintWriter out;
+        private final ConnectionEngine.Transport connection;
+        // Reused for every command line this client sends
+        private final CommandLine commandLine = new CommandLine();
+        // History still being sent to this client, stopped if the client asks for more history
+        private HistoryStream historyStream;
         private String username;
-        private final Set<Group> joinedGroups = new HashSet<>();
+        // Rate limit buckets, made once the username is known
+        private RateLimits.Connection limits;
+        // Token this client can resume its session with, null when sessions are off
+        private String sessionToken;
+        // Set by %exit, so the session ends for good instead of waiting to be resumed
+        private volatile boolean exiting;
+        // Set while the connection is gone but the session may still be resumed
+        private volatile boolean away;
+        // Groups this client belongs to (client -> groups side of the membership index)
+        // Only the client's own thread adds to it; deleting a group removes it from every member's set
+        private final Set<Group> joinedGroups = ConcurrentHashMap.newKeySet();
         private final String helpMessage = "Commands:\n"
                             + "%exit - Disconnect from the server\n" + "%post - Post a message to a message board\n"
                             + "%users - View a list of all users in a group\n" + "%leave - Leave the current group\n"
                             + "%message - View the content of a certain message\n" + "%groups - View a list of all groups\n"
                             + "%groupjoin - Join a specific group\n" + "%grouppost - Post a message to a specific group\n"
                             + "%groupusers - View a list of all users within a specific group\n" + "%groupleave - Leave a specific group\n"
-                            + "%groupmessage - View the content of a message within a specific group\n" + "%help - Repeat this message\n";
+                            + "%groupmessage - View the content of a message within a specific group\n"
+                            + "%history - View older messages of a group, a page at a time\n"
+                            + "%search - Find the newest messages in a group containing some words\n"
+                            + "%groupcreate - Create a new group\n" + "%groupdelete - Delete a group you created\n"
+                            + "%stats - View server statistics\n"
+                            + "%help - Repeat this message\n";
+
+        public ClientHandler(ConnectionEngine.Transport connection) {
+            this.connection = connection;
+            this.outbound = new OutboundQueue(connection, outboundCapacity, outboundPolicy);
+            // Every println is flushed into the queue as one frame
+            this.out = new PrintWriter(outbound.asWriter(), true);
+        }
+
+        @Override
+        public void onOpen() {
+            // Add the client handler to list of active clients
+            clients.add(this);
+            // Username registration
+            out.println("Welcome to the Bulletin Board Server. Please enter your username:");
+        }
+
+        @Override
+        public void onLine(String inputLine) {
+            // The first line a client sends is its username or a %resume, everything after is a command
+            if (username == null) {
+                commandLine.parse(inputLine);
+                if (commandLine.command() == CommandLine.Command.RESUME) {
+                    resume();
+                } else {
+                    registerUser(inputLine);
+                }
+            } else {
+                processCommand(inputLine);
+            }
+        }
 
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
+        @Override
+        public void onWritable() {
+            outbound.schedule();
         }
 
         @Override
-        public void run() {
-            try {
-                // Set up input and output streams for communication
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        public void onClose() {
+            // Cleanup when client disconnects
+            clients.remove(this);
+            outbound.close();
+            if (username == null) {
+                return;
+            }
+            limits.close();
+            // Unless the user asked to leave, keep their groups for a while in case they come back (see resume)
+            if (!exiting && sessionToken != null
+                    && sessions.park(sessionToken, this, delivered(), ClientHandler::leaveAll)) {
+                away = true;
+                return;
+            }
+            // A session resumed on another connection has already taken this client's groups
+            if (sessions.close(sessionToken, this)) {
+                leaveAll();
+            }
+        }
 
-                // Username registration
-                out.println("Welcome to the Bulletin Board Server. Please enter your username:");
-                username = in.readLine();
+        // Method to drop this client from every group it joined, then tell the others
+        private void leaveAll() {
+            for (Group group : joinedGroups) {
+                membersOf(group).remove(this);
+            }
+            joinedGroups.clear();
+            broadcastLeave(username);
+        }
 
-                // Join public group by default
-                Group publicGroup = groups.get(0);
-                joinGroup(publicGroup);
+        // Method to note how far each joined group's history has been sent, which is where a resumed session
+        // catches up from; slots rather than IDs, since cluster IDs do not follow posting order
+        private Map<String, Integer> delivered() {
+            Map<String, Integer> sent = new HashMap<>();
+            for (Group group : joinedGroups) {
+                MessageHistory history = historyOf(group);
+                sent.put(group.getId(), history == null ? 0 : history.size());
+            }
+            return sent;
+        }
 
-                // Send last 2 messages to new user
-                sendLastMessages(publicGroup);
+        // Method to take over a dropped session: its username and groups, then whatever was posted to them meanwhile
+        private void resume() {
+            if (commandLine.argCount() < 1 || commandLine.argCount() > 2 || (commandLine.argCount() == 2 && !commandLine.isIntArg(2))) {
+                out.println("Invalid command. Format: '%resume <session_token> [last_message_ID]'. Please enter your username:");
+                return;
+            }
+            String token = commandLine.arg(1);
+            Sessions.Session<ClientHandler> session = sessions.resume(token, this);
+            if (session == null) {
+                out.println("That session has expired. Please enter your username:");
+                return;
+            }
+            ClientHandler old = session.client();
+            Map<String, Integer> delivered = session.delivered();
+            if (delivered == null) {
+                // The old connection has not noticed it is dead yet; it goes now
+                delivered = old.delivered();
+                old.outbound.closeAfterFlush();
+            }
+            username = old.username;
+            sessionToken = token;
+            limits = rateLimits.connect(username);
 
-                // Send current user list for default public group
-                sendUserList(groups.get(0));
+            // Take the old connection's place in each group without join or leave notices
+            for (Group group : old.joinedGroups) {
+                GroupRegistry.Entry<ClientHandler> entry = groupRegistry.get(group.getId());
+                if (entry != null) {
+                    joinedGroups.add(group);
+                    entry.members().add(this);
+                    entry.members().remove(old);
+                }
+            }
+            old.joinedGroups.clear();
 
-                // Show list of possible commands
-                out.println(helpMessage);
+            out.println("Welcome back, " + username + ".");
+            sendMissedMessages(delivered, commandLine.argCount() == 2 ? commandLine.intArg(2) : 0);
+        }
 
-                // Main command processing loop
-                String inputLine;
-                while ((inputLine = in.readLine()) != null) {
-                    processCommand(inputLine);
+        // Method to send, group by group, the messages posted after a resumed session last had them
+        // lastSeen is the newest message ID the client says it received; its connection may have lost the last few
+        private void sendMissedMessages(Map<String, Integer> delivered, int lastSeen) {
+            // Find every group's range first, so the last one can say when the client is up to date
+            List<MessageHistory> histories = new ArrayList<>();
+            List<int[]> ranges = new ArrayList<>();
+            List<String> headers = new ArrayList<>();
+            for (Group group : joinedGroups) {
+                MessageHistory history = historyOf(group);
+                Integer sent = delivered.get(group.getId());
+                if (history == null || sent == null) {
+                    continue;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                // Cleanup when client disconnects
-                clients.remove(this);
-                broadcastLeave(username);
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    out.println("Error closing socket: " + e.getMessage());
+                int end = history.size();
+                int start = resumeSlot(history, sent, lastSeen);
+                if (start >= end) {
+                    continue;
+                }
+                // A long absence is capped like any history page; the rest can be paged through with %history
+                int left = Math.max(0, end - start - MAX_HISTORY_PAGE);
+                start += left;
+                histories.add(history);
+                ranges.add(new int[] { start, end });
+                headers.add("Missed in " + group.getName() + ", " + (end - start) + " messages:" + (left > 0
+                    ? " (" + left + " older ones left out, enter %history " + group.getId() + " " + history.idAt(start)
+                        + " to see them)"
+                    : ""));
+            }
+            if (histories.isEmpty()) {
+                out.println("Nothing new since you left.\n");
+                return;
+            }
+
+            HistoryStream first = null;
+            HistoryStream last = null;
+            for (int i = 0; i < histories.size(); i++) {
+                String footer = i == histories.size() - 1 ? "You are up to date.\n" : null;
+                HistoryStream stream = new HistoryStream(histories.get(i), ranges.get(i)[0], ranges.get(i)[1],
+                    Message::toString, headers.get(i), footer, outbound, historyReaders, historyChunkChars());
+                if (first == null) {
+                    first = stream;
+                } else {
+                    last.andThen(stream);
+                }
+                last = stream;
+            }
+            streamHistory(first);
+        }
+
+        // Method to find where a resumed group's missed messages start: after the last slot the old connection
+        // was sent, or earlier if the client says it never got the last few
+        private int resumeSlot(MessageHistory history, int sent, int lastSeen) {
+            if (lastSeen <= 0) {
+                return sent;
+            }
+            int seen = history.slotOf(lastSeen);
+            if (seen >= 0) {
+                return Math.min(sent, seen + 1);
+            }
+            // lastSeen is from another group, so step back only over messages that were surely posted after it:
+            // IDs only follow posting order among the messages of one cluster node
+            int start = sent;
+            int residue = Math.floorMod(lastSeen, Message.idStride());
+            while (start > 0 && sent - start < MAX_HISTORY_PAGE) {
+                int id = history.idAt(start - 1);
+                if (id <= lastSeen || !Message.isFrom(id, residue)) {
+                    break;
                 }
+                start--;
+            }
+            return start;
+        }
+
+        // Method to finish registration once the username arrives
+        private void registerUser(String name) {
+            username = name;
+            limits = rateLimits.connect(name);
+
+            // Join public group by default
+            joinGroup(publicGroup);
+
+            // Send the most recent messages to new user
+            sendLastMessages(publicGroup);
+
+            // Send current user list for default public group
+            sendUserList(publicGroup);
+
+            // Show list of possible commands
+            out.println(helpMessage);
+
+            // Hand out a token the client can pick this session up with after a dropped connection
+            if (sessions.isEnabled()) {
+                sessionToken = sessions.open(this);
+                out.println("Session token: " + sessionToken + " (if your connection drops, reconnect within "
+                    + sessions.graceSeconds() + " seconds and send %resume " + sessionToken + " to catch up)\n");
             }
         }
 
         // Process and route client commands
-        private void processCommand(String command) throws IOException {
-            // Strip the command keyword from the rest of the command 
-            String[] mainParts = command.split(" ", 2);
-            String cmd = mainParts[0].toLowerCase();
-            String[] cmdAuxilary;
+        void processCommand(String command) {
+            long started = System.nanoTime();
+            // Find the command keyword and arguments in place, without splitting or lowercasing the line
+            commandLine.parse(command);
+            CommandLine.Command cmd = commandLine.command();
+
+            // Refuse the command outright if this connection or user is going too fast
+            long wait = limits.check(cmd.limit());
+            if (wait > 0) {
+                out.println("You are sending "
+                    + (cmd == CommandLine.Command.POST || cmd == CommandLine.Command.GROUPPOST ? "posts" : "requests")
+                    + " too fast. Try again in " + String.format("%.1f", Math.max(0.1, wait / 1e9)) + " seconds.\n");
+                ServerMetrics.recordThrottled(cmd);
+                return;
+            }
 
             switch (cmd) {
                 // Handle posting to public group
-                case "%post":
-                    // Get the subject and content from the command
-                    cmdAuxilary = mainParts[1].split(" ", 2);
-
+                case POST:
                     // Check for invalid command format
-                    if (cmdAuxilary.length < 2) {
+                    if (commandLine.argCount() < 2) {
                         out.println("Invalid command. Format: '%post <subject> <content>'\n");
                         break;
                     }
 
-                    handlePost(cmdAuxilary[0], cmdAuxilary[1], groups.get(0)); // Default public group
+                    handlePost(commandLine.arg(1), commandLine.rest(2), publicGroup); // Default public group
                     break;
                 // Handle posting to a private group
-                case "%grouppost":
-                    // Get the group num, subject, and content from the command
-                    cmdAuxilary = mainParts[1].split(" ", 3);
-
+                case GROUPPOST:
                     // Check for invalid command format
-                    if (cmdAuxilary.length < 3) {
+                    if (commandLine.argCount() < 3) {
                         out.println("Invalid command. Format: '%grouppost <group_num> <subject> <content>'\n");
                         break;
                     }
 
-                    Group group = findGroup(cmdAuxilary[0]);
+                    Group group = lookupGroup(commandLine.arg(1));
                     if (group != null) {
-                        handlePost(cmdAuxilary[1], cmdAuxilary[2], group);
+                        handlePost(commandLine.arg(2), commandLine.rest(3), group);
                     }
                     break;
                 // Handle getting users in public group
-                case "%users":
-                    sendUserList(groups.get(0)); // Default public group
+                case USERS:
+                    sendUserList(publicGroup); // Default public group
                     break;
                 // Handle getting users in a private group
-                case "%groupusers":
+                case GROUPUSERS:
                     // Verify user provided a group number
-                    if (mainParts.length != 2) {
+                    if (commandLine.argCount() < 1) {
                         out.println("Invalid command. Format: '%groupusers <group_num>'\n");
                         break;
                     }
 
-                    Group targetGroup = findGroup(mainParts[1]);
+                    Group targetGroup = lookupGroup(commandLine.rest(1));
                     if (targetGroup != null) {
                         sendUserList(targetGroup);
                     }
                     break;
                 // Handle case for getting a message from the public group
-                case "%message":
-                    sendMessageContent(mainParts[1], groups.get(0)); // Default public group
+                case MESSAGE:
+                    // Verify user provided a message ID
+                    if (commandLine.argCount() != 1) {
+                        out.println("Invalid command. Format: '%message <message_ID>'\n");
+                        break;
+                    }
+
+                    if (isMessageId(1)) {
+                        sendMessageContent(commandLine.intArg(1), publicGroup); // Default public group
+                    }
                     break;
                 // Handle case for getting a message from a private group
-                case "%groupmessage":
+                case GROUPMESSAGE:
                     // Check for invalid command format
-                    cmdAuxilary = mainParts[1].split(" ", 2);
-                    if (cmdAuxilary.length < 2) {
+                    if (commandLine.argCount() != 2) {
                         out.println("Invalid command. Format: '%groupmessage <group_num> <message_ID>'\n");
                         break;
                     }
 
-                    Group msgGroup = findGroup(cmdAuxilary[0]);
-                    if (msgGroup != null) {
-                        sendMessageContent(cmdAuxilary[1], msgGroup);
+                    Group msgGroup = lookupGroup(commandLine.arg(1));
+                    if (msgGroup != null && isMessageId(2)) {
+                        sendMessageContent(commandLine.intArg(2), msgGroup);
+                    }
+                    break;
+                // Handle case for paging through a group's history
+                case HISTORY:
+                    // Verify user provided a group number
+                    if (commandLine.argCount() < 1) {
+                        out.println("Invalid command. Format: '%history <group_num> [before_message_ID] [limit]'\n");
+                        break;
+                    }
+
+                    Group historyGroup = lookupGroup(commandLine.arg(1));
+                    if (historyGroup != null && (commandLine.argCount() < 2 || isMessageId(2))
+                            && (commandLine.argCount() < 3 || isHistoryLimit(3))) {
+                        sendHistory(historyGroup, commandLine.argCount() < 2 ? 0 : commandLine.intArg(2),
+                            commandLine.argCount() < 3 ? HISTORY_PAGE : commandLine.intArg(3));
+                    }
+                    break;
+                // Handle case for searching a group's messages
+                case SEARCH:
+                    // Check for invalid command format
+                    if (commandLine.argCount() < 2) {
+                        out.println("Invalid command. Format: '%search <group_num> <words>'\n");
+                        break;
+                    }
+
+                    Group searchGroup = lookupGroup(commandLine.arg(1));
+                    if (searchGroup != null) {
+                        sendSearchResults(searchGroup, commandLine.rest(2));
                     }
                     break;
                 // Handle case for getting all available groups
-                case "%groups":
-                    sendGroupList();
+                case GROUPS:
+                    if (commandLine.argCount() == 0) {
+                        sendGroupList(1);
+                    } else if (commandLine.argCount() == 1 && commandLine.isIntArg(1) && commandLine.intArg(1) > 0) {
+                        sendGroupList(commandLine.intArg(1));
+                    } else {
+                        out.println("Invalid command. Format: '%groups [page]'\n");
+                    }
+                    break;
+                // Handle case for creating a new group
+                case GROUPCREATE:
+                    // Verify user provided a group name
+                    if (commandLine.argCount() < 1) {
+                        out.println("Invalid command. Format: '%groupcreate <group_name>'\n");
+                        break;
+                    }
+
+                    createGroup(commandLine.rest(1));
+                    break;
+                // Handle case for deleting a group the user created
+                case GROUPDELETE:
+                    // Verify user provided a group number
+                    if (commandLine.argCount() < 1) {
+                        out.println("Invalid command. Format: '%groupdelete <group_num>'\n");
+                        break;
+                    }
+
+                    Group deleteGroup = lookupGroup(commandLine.rest(1));
+                    if (deleteGroup != null) {
+                        deleteGroup(deleteGroup);
+                    }
                     break;
                 // Handle case for joining a private group
-                case "%groupjoin":
+                case GROUPJOIN:
                     // Verify user provided a group number
-                    if (mainParts.length != 2) {
+                    if (commandLine.argCount() < 1) {
                         out.println("Invalid command. Format: '%groupjoin <group_num>'\n");
                         break;
                     }
 
-                    Group joinGroup = findGroup(mainParts[1]);
-                    if (joinGroup != null) {
-                        joinGroup(joinGroup);
+                    Group joinGroup = lookupGroup(commandLine.rest(1));
+                    if (joinGroup != null && joinGroup(joinGroup)) {
+                        sendLastMessages(joinGroup);
                     }
                     break;
                 // Handle case for leaving a private group
-                case "%groupleave":
+                case GROUPLEAVE:
                     // Verify user provided a group number
-                    if (mainParts.length != 2) {
+                    if (commandLine.argCount() < 1) {
                         out.println("Invalid command. Format: '%groupleave <group_num>'\n");
                         break;
                     }
 
-                    Group leaveGroup = findGroup(mainParts[1]);
+                    Group leaveGroup = lookupGroup(commandLine.rest(1));
                     if (leaveGroup != null) {
                         leaveGroup(leaveGroup);
                     }
                     break;
                 // Handle case for leaving default public group
-                case "%leave":
-                    leaveGroup(groups.get(0)); // Leave public group
+                case LEAVE:
+                    leaveGroup(publicGroup); // Leave public group
                     break;
                 // Handle case for exiting server
-                case "%exit":
-                    try {
-                        clientSocket.close();
-                    } catch (IOException e) {
-                        out.println("Error disconnecting from server: " + e.getMessage());
-                    }
+                case EXIT:
+                    exiting = true;
+                    // Let replies to earlier commands reach the client before the socket closes
+                    outbound.closeAfterFlush();
                     break;
                 // Handle case for printing possible commands
-                case "%help":
+                case HELP:
                     out.println(helpMessage);
                     break;
+                // Handle a resume sent after registering
+                case RESUME:
+                    out.println("You are already connected as " + username + ".\n");
+                    break;
+                // Handle case for viewing server statistics (admin only when stats.users is set)
+                case STATS:
+                    if (!statsUsers.isEmpty() && !statsUsers.contains(username)) {
+                        out.println("You are not allowed to view server statistics.\n");
+                        break;
+                    }
+                    out.println(ServerMetrics.report());
+                    break;
                 // Handle case for unrecognized command
                 default:
                     out.println("Unknown command. Enter %help to see a list of all possible commands.\n");
                     break;
             }
+            ServerMetrics.recordCommand(cmd, System.nanoTime() - started);
+        }
+
+        // Method to make sure a message ID argument is a number, telling the client if it is not
+        private boolean isMessageId(int index) {
+            if (commandLine.isIntArg(index)) {
+                return true;
+            }
+            out.println("Invalid message ID '" + commandLine.arg(index) + "'. Message IDs are numbers.\n");
+            return false;
+        }
+
+        // Method to make sure a page size argument is in range, telling the client if it is not
+        private boolean isHistoryLimit(int index) {
+            if (commandLine.isIntArg(index) && commandLine.intArg(index) > 0 && commandLine.intArg(index) <= MAX_HISTORY_PAGE) {
+                return true;
+            }
+            out.println("Invalid limit '" + commandLine.arg(index) + "'. The limit is a number from 1 to " + MAX_HISTORY_PAGE + ".\n");
+            return false;
         }
 
         // Method to handle message posting
-        private void handlePost(String subject, String content, Group group) {
+        void handlePost(String subject, String content, Group group) {
+            MessageHistory history = historyOf(group);
+            if (history == null) {
+                out.println(group.getName() + " has been deleted.\n");
+                return;
+            }
             // Create a new message and add it to the group's message list
             Message message = new Message(username, subject, content, group);
-            groupMessages.get(group.getId()).add(message);
-            // Broadcast the message to all users in the group
-            broadcastMessage(message, group);
+            if (journal == null) {
+                history.add(message, MessageHistory.NOT_STORED);
+                broadcastMessage(message, group);
+                return;
+            }
+            // Make the message durable before anyone can see it; the wait is shared by the whole commit batch
+            // This client's next command waits for the commit too, but on the nio engine the worker does not,
+            // so a batch can hold posts from far more clients than there are workers
+            connection.continueWith(journal.append(message), (location, error) -> {
+                if (error != null) {
+                    out.println("Error saving message: " + error.getMessage() + "\n");
+                    return;
+                }
+                history.add(message, location);
+                // Broadcast the message to all users in the group
+                broadcastMessage(message, group);
+            });
         }
 
-        // Method to join a group
-        private void joinGroup(Group group) {
+        // Method to join a group; returns false if this client was already a member or the group is gone
+        private boolean joinGroup(Group group) {
             // Add group if not already joined and broadcast join event
-            if (!joinedGroups.contains(group)) {
-                joinedGroups.add(group);
-                broadcastJoin(username, group);
+            if (!joinedGroups.add(group)) {
+                return false;
+            }
+            GroupRegistry.Entry<ClientHandler> entry = groupRegistry.get(group.getId());
+            if (entry != null) {
+                entry.members().add(this);
+                // A delete removes the entry before dropping its members, so either it sees this client
+                // or the entry is already gone here
+                if (groupRegistry.get(group.getId()) == entry) {
+                    broadcastJoin(username, group);
+                    return true;
+                }
+                entry.members().remove(this);
             }
+            // Deleted, here or on another node, since the command looked it up
+            joinedGroups.remove(group);
+            out.println("No group '" + group.getId() + "'. Enter %groups to see a list of all groups.\n");
+            return false;
         }
 
         // Method to leave a group
         private void leaveGroup(Group group) {
             if (joinedGroups.remove(group)) {
+                membersOf(group).remove(this);
                 // Broadcast leave event if group successfully removed
                 broadcastLeave(username, group);
             }
             out.println("You have left " + group.getName());
         }
 
-        // Method to send last 2 messages upon group join
+        // Method to create a group owned by this user and join it
+        private void createGroup(String name) {
+            String problem = checkGroupName(name);
+            if (problem != null) {
+                out.println(problem + "\n");
+                return;
+            }
+            GroupRegistry.Entry<ClientHandler> entry = groupRegistry.create(name, username);
+            if (entry == null) {
+                out.println("A group named '" + name + "' already exists.\n");
+                return;
+            }
+
+            Group group = entry.group();
+            if (groupLog != null) {
+                try {
+                    groupLog.created(group);
+                } catch (IOException e) {
+                    groupRegistry.remove(group.getId());
+                    out.println("Error saving group: " + e.getMessage() + "\n");
+                    return;
+                }
+            }
+            if (cluster != null) {
+                cluster.publishGroupCreate(group);
+            }
+            out.println("Created group " + group.getId() + ": " + group.getName());
+            joinGroup(group);
+        }
+
+        // Method to delete a group, which only the user who created it may do
+        private void deleteGroup(Group group) {
+            if (group.getOwner() == null) {
+                out.println(group.getName() + " is built into the server and cannot be deleted.\n");
+                return;
+            }
+            if (!group.getOwner().equals(username)) {
+                out.println("Only " + group.getOwner() + " can delete " + group.getName() + ".\n");
+                return;
+            }
+
+            if (groupLog != null) {
+                try {
+                    groupLog.deleted(group.getId());
+                } catch (IOException e) {
+                    out.println("Error saving group: " + e.getMessage() + "\n");
+                    return;
+                }
+            }
+            // Members hear about it from removeGroup; anyone else gets a plain confirmation
+            boolean member = joinedGroups.contains(group);
+            removeGroup(group, username);
+            if (cluster != null) {
+                cluster.publishGroupDelete(group, username);
+            }
+            if (!member) {
+                out.println("Deleted " + group.getName() + "\n");
+            }
+        }
+
+        // Method to check a new group name, returning what is wrong with it or null if it is fine
+        private static String checkGroupName(String name) {
+            if (name.length() > MAX_GROUP_NAME_LENGTH) {
+                return "Group names can be at most " + MAX_GROUP_NAME_LENGTH + " characters.";
+            }
+            boolean digitsOnly = true;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (Character.isISOControl(c)) {
+                    return "Group names cannot contain control characters.";
+                }
+                digitsOnly &= c >= '0' && c <= '9';
+            }
+            // Commands take a group ID or name in the same place, so a name must never look like an ID
+            return digitsOnly ? "Group names cannot be just a number." : null;
+        }
+
+        // Method to send the last few messages (history.replayOnJoin) upon group join
         private void sendLastMessages(Group group) {
-            // Get list of previous messages
-            List<Message> messages = groupMessages.get(group.getId());
+            MessageHistory history = historyOf(group);
+            int end = history != null ? history.size() : 0;
+            int start = Math.max(0, end - replayOnJoin);
 
-            if (messages.isEmpty()) {
+            if (start == end) {
                 out.println("No recent messages.\n");
             } else {
-                out.println("Recent messages: ");
-                int start = Math.max(0, messages.size() - 2);
-                // Print last 2 messages
-                for (int i = start; i < messages.size(); i++) {
-                    out.println(messages.get(i));
-                }
-                out.println("\n");
+                streamHistory(new HistoryStream(history, start, end, Message::toString, "Recent messages: ", "\n",
+                    outbound, historyReaders, historyChunkChars()));
+            }
+        }
+
+        // Method to send up to limit messages of a group posted before a message ID (0 for the newest), oldest first
+        // The reply ends with the command for the page before it, so a client can walk back through any amount of history
+        private void sendHistory(Group group, int beforeId, int limit) {
+            MessageHistory history = historyOf(group);
+            int end = history != null ? history.slotBefore(beforeId) : 0;
+            int start = Math.max(0, end - limit);
+
+            if (start == end) {
+                out.println("No " + (beforeId > 0 ? "older " : "") + "messages in " + group.getName() + ".\n");
+                return;
+            }
+            String header = "History of " + group.getName() + ", " + (end - start) + " messages:";
+            String footer = start > 0
+                ? "Enter %history " + group.getId() + " " + history.idAt(start) + " " + limit + " to see older messages.\n"
+                : "Start of " + group.getName() + ".\n";
+            streamHistory(new HistoryStream(history, start, end, Message::getFullContent, header, footer,
+                outbound, historyReaders, historyChunkChars()));
+        }
+
+        // Method to show the newest messages of a group that contain every word searched for
+        private void sendSearchResults(Group group, String query) {
+            if (SearchIndex.terms(query).isEmpty()) {
+                out.println("Search for words of at least two letters or digits.\n");
+                return;
+            }
+            MessageHistory history = historyOf(group);
+            List<Message> found = history != null ? history.search(query, SEARCH_RESULTS) : Collections.emptyList();
+
+            if (found.isEmpty()) {
+                out.println("No messages in " + group.getName() + " contain '" + query + "'.\n");
+            } else {
+                out.println("Messages in " + group.getName() + " containing '" + query + "', newest first:");
+                found.forEach(out::println);
+                out.println();
             }
         }
 
+        // Method to start sending history, stopping any earlier history this client has not finished receiving
+        private void streamHistory(HistoryStream stream) {
+            if (historyStream != null) {
+                historyStream.cancel();
+            }
+            historyStream = stream;
+            stream.run();
+        }
+
+        private static int historyChunkChars() {
+            return Math.max(1, Math.min(HISTORY_CHUNK_CHARS, outboundCapacity / 4));
+        }
+
         // Method to show current users in a group
         private void sendUserList(Group group) {
             out.println("Users in " + group.getName() + ":");
-            // Stream through all clients and filter for those in the specified group
-            // This ensures only users in the current group are displayed
-            clients.stream()
-                .filter(c -> c.joinedGroups.contains(group))
-                .forEach(c -> out.println(c.username));
+            // Only the group's own members are visited, regardless of how many clients are connected
+            membersOf(group).forEach(c -> out.println(c.away ? c.username + " (reconnecting)" : c.username));
+            // Members connected to other nodes
+            if (cluster != null) {
+                cluster.remoteMembers(group.getId()).forEach(out::println);
+            }
             out.println(); // Print newline
         }
 
-        // Method to show list of all available groups
-        private void sendGroupList() {
+        // Method to show one page of the available groups, oldest first
+        private void sendGroupList(int page) {
+            int pages = Math.max(1, (groupRegistry.size() + GROUPS_PER_PAGE - 1) / GROUPS_PER_PAGE);
+            if (page > pages) {
+                out.println("There " + (pages == 1 ? "is only 1 page" : "are only " + pages + " pages") + " of groups.\n");
+                return;
+            }
             out.println("Available Groups:");
-            groups.forEach(g -> out.println(g.getId() + ": " + g.getName()));
+            groupRegistry.page(page, GROUPS_PER_PAGE).forEach(g -> out.println(g.getId() + ": " + g.getName()));
+            if (pages > 1) {
+                out.println("Page " + page + " of " + pages + ". Enter %groups <page> to see another page.\n");
+            }
         }
 
         // Method to show message content given an ID
-        private void sendMessageContent(String messageId, Group group) {
-            // Use stream to find the message with the matching ID in the group's message list
-            groupMessages.get(group.getId()).stream()
-                // Convert message ID to int and find matching message
-                .filter(m -> m.getId() == Integer.parseInt(messageId))
-                // Get the first matching message (not always necessary)
-                .findFirst()
-                // If message found, print its full content
-                .ifPresent(m -> out.println(m.getFullContent()));
+        void sendMessageContent(int id, Group group) {
+            // Constant-time lookup in the group's ID index
+            MessageHistory history = historyOf(group);
+            Message message = history != null ? history.get(id) : null;
+            if (message == null) {
+                out.println("No message with ID " + id + " in " + group.getName() + ".\n");
+            } else {
+                out.println(message.getFullContent());
+            }
         }
 
         // Method to broadcast a message to all users in a specific group
         private void broadcastMessage(Message message, Group group) {
-            // Stream through all clients and filter for those in the group
-            clients.stream()
-                .filter(c -> c.joinedGroups.contains(group))
-                .forEach(c -> c.out.println(message));
+            // Deliver to every member of the group, here and on the other nodes
+            broadcast(group, message.toString());
+            if (cluster != null) {
+                cluster.publishPost(message);
+            }
         }
 
         // Method to broadcast a join event to all users in a specific group
         private void broadcastJoin(String username, Group group) {
-            // Stream through all clients and filter for those in the group
-            clients.stream()
-                .filter(c -> c.joinedGroups.contains(group))
-                .forEach(c -> c.out.println(username + " joined " + group.getName() + "\n"));
+            // Every member, the user included, hears about it in the group's next presence summary
+            presence.joined(username, group);
+            if (cluster != null) {
+                cluster.publishJoin(username, group);
+            }
         }
 
         // Method to broadcast a leave event to the public grooup users when a user disconnects
         private void broadcastLeave(String username) {
-            // Stream through all clients and filter for those in the public group
-            clients.stream()
-                .filter(c -> c.joinedGroups.contains(groups.get(0)))
-                .forEach(c -> c.out.println(username + " left the public group\n"));
+            // Deliver to every member of the public group
+            presence.left(username, publicGroup);
+            if (cluster != null) {
+                cluster.publishDisconnect(username);
+            }
         }
 
         // Method to broadcast a leave event to all users in a specific group
         private void broadcastLeave(String username, Group group) {
-            // Stream through all clients and filter for those in the specified group
-            clients.stream()
-                .filter(c -> c.joinedGroups.contains(group))
-                .forEach(c -> c.out.println(username + " left " + group.getName() + "\n"));
+            // Deliver to every member of the specified group
+            presence.left(username, group);
+            if (cluster != null) {
+                cluster.publishLeave(username, group);
+            }
+        }
+
+        // Method to send one line to every member of a group connected to this node
+        // The line is formatted and encoded once and every member's queue shares the same frame
+        private static void broadcast(Group group, String line) {
+            byte[] frame = OutboundQueue.encodeLine(line);
+            Set<ClientHandler> members = membersOf(group);
+            members.forEach(c -> c.outbound.send(frame));
+            ServerMetrics.recordBroadcast(members.size());
+        }
+
+        // Method to get the current members of a group from the membership index
+        private static Set<ClientHandler> membersOf(Group group) {
+            GroupRegistry.Entry<ClientHandler> entry = groupRegistry.get(group.getId());
+            // A group deleted while a command was using it has no members left; that set is read-only,
+            // so joining goes through the registry entry instead (see joinGroup)
+            return entry != null ? entry.members() : Collections.emptySet();
         }
 
         // Method to return Group object given an ID
-        private Group findGroup(String groupId) {
-            // Stream through all groups and filter for group ID
-            return groups.stream()
-                .filter(g -> g.getId().equals(groupId) || g.getName().equalsIgnoreCase(groupId))
-                .findFirst()
-                .orElse(null);
+        Group findGroup(String groupId) {
+            // Try the exact ID first, then the name in any case
+            GroupRegistry.Entry<ClientHandler> entry = groupRegistry.find(groupId);
+            return entry != null ? entry.group() : null;
+        }
+
+        // Method to find the group a command names, telling the client if there is no such group
+        private Group lookupGroup(String groupId) {
+            Group group = findGroup(groupId);
+            if (group == null) {
+                out.println("No group '" + groupId + "'. Enter %groups to see a list of all groups.\n");
+            }
+            return group;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+// Helper type for startup settings
+// Values come from -Dboard.<key>=<value> system properties or --<key>=<value> program arguments
+public final class ServerConfig {
+    private static final String PREFIX = "board.";
+
+    private ServerConfig() {
+    }
+
+    // Copy --key=value arguments into system properties so they override the defaults
+    public static void applyArgs(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Invalid argument '" + arg + "'. Format: --<key>=<value>");
+            }
+            int split = arg.indexOf('=');
+            System.setProperty(PREFIX + arg.substring(2, split), arg.substring(split + 1));
+        }
+    }
+
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty(PREFIX + key, defaultValue);
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,290 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.*;
+
+// Helper type: server-wide counters and histograms, readable through JMX and the %stats command
+// Recording only bumps preallocated counters and never allocates, so it can stay on in production
+public final class ServerMetrics {
+    // One latency histogram per command, indexed by ordinal; unrecognised lines count as UNKNOWN
+    private static final CommandLine.Command[] COMMANDS = CommandLine.Command.values();
+    private static final LatencyHistogram[] commandLatency = new LatencyHistogram[COMMANDS.length];
+    // Commands refused by the rate limits, by ordinal; they are not in the latency histograms
+    private static final LongAdder[] commandThrottled = new LongAdder[COMMANDS.length];
+    // Recipients per broadcast
+    private static final LatencyHistogram fanOut = new LatencyHistogram();
+    private static final LongAdder deliveries = new LongAdder();
+    // Sent bytes over the last second, refreshed by the sampler thread
+    private static volatile long outboundBytesPerSecond;
+
+    // Live server state that reports read from, set once by start
+    private static volatile IntSupplier connectedClients = () -> 0;
+    private static volatile GroupRegistry<?> groups = new GroupRegistry<>();
+    // %stats lists only the groups with the most members; JMX has every group
+    private static final int REPORTED_GROUPS = 10;
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            commandLatency[i] = new LatencyHistogram();
+            commandThrottled[i] = new LongAdder();
+        }
+    }
+
+    private ServerMetrics() {
+    }
+
+    // Method to expose the metrics over JMX and start sampling the outbound byte rate
+    public static void start(IntSupplier clients, GroupRegistry<?> registry) {
+        connectedClients = clients;
+        groups = registry;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(new Board(), BoardMXBean.class, true), new ObjectName("bulletinboard:type=Server"));
+        } catch (JMException e) {
+            System.out.println("Error registering server metrics with JMX: " + e.getMessage());
+        }
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] lastSent = { OutboundQueue.totalSentBytes() };
+        sampler.scheduleAtFixedRate(() -> {
+            long sent = OutboundQueue.totalSentBytes();
+            outboundBytesPerSecond = sent - lastSent[0];
+            lastSent[0] = sent;
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Method to record how long one command took to handle
+    public static void recordCommand(CommandLine.Command command, long nanos) {
+        commandLatency[command.ordinal()].record(nanos);
+    }
+
+    // Method to record a command the rate limits refused
+    public static void recordThrottled(CommandLine.Command command) {
+        commandThrottled[command.ordinal()].increment();
+    }
+
+    // Method to record one broadcast and how many clients it went to
+    public static void recordBroadcast(int recipients) {
+        fanOut.record(recipients);
+        deliveries.add(recipients);
+    }
+
+    // Method to render every metric as text for %stats
+    public static String report() {
+        StringBuilder report = new StringBuilder("Server statistics:\n");
+        report.append("Connected clients: ").append(connectedClients.getAsInt()).append('\n');
+        report.append("Outbound: ").append(outboundBytesPerSecond).append(" bytes/s, ")
+            .append(OutboundQueue.totalQueuedBytes()).append(" bytes queued, ")
+            .append(OutboundQueue.totalDroppedFrames()).append(" frames dropped\n");
+        report.append("Broadcasts: ").append(fanOut.count()).append(", fan-out p50 ").append(fanOut.valueAtPercentile(50))
+            .append(" / p99 ").append(fanOut.valueAtPercentile(99)).append(" / max ").append(fanOut.max())
+            .append(", ").append(deliveries.sum()).append(" deliveries\n");
+        report.append("Presence: ").append(Presence.events()).append(" joins and leaves sent as ")
+            .append(Presence.lines()).append(" notices\n");
+        report.append("Sessions: ").append(Sessions.parked()).append(" parked, ").append(Sessions.resumed())
+            .append(" resumed, ").append(Sessions.expired()).append(" expired\n");
+        report.append("History: ").append(MessageHistory.totalResidentBytes()).append(" bytes in memory, reads ")
+            .append(MessageHistory.hotReads()).append(" from memory / ").append(MessageHistory.cacheHits())
+            .append(" from cache / ").append(MessageHistory.diskReads()).append(" from disk\n");
+
+        int groupCount = groups.size();
+        report.append("Groups: ").append(groupCount).append(groupCount > REPORTED_GROUPS ? ", largest " + REPORTED_GROUPS : "")
+            .append(" (members, messages):\n");
+        for (GroupRegistry.Entry<?> entry : largestGroups()) {
+            report.append("  ").append(entry.group().getId()).append(": ").append(entry.members().size()).append(", ")
+                .append(entry.history().size()).append('\n');
+        }
+
+        report.append("Commands (count, latency p50 / p99 / max in microseconds, throttled):\n");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            LatencyHistogram latency = commandLatency[i];
+            long count = latency.count();
+            long throttled = commandThrottled[i].sum();
+            if (count > 0 || throttled > 0) {
+                report.append(String.format("  %s: %d, %.1f / %.1f / %.1f, %d%n", COMMANDS[i].text(), count,
+                    micros(latency.valueAtPercentile(50)), micros(latency.valueAtPercentile(99)), micros(latency.max()),
+                    throttled));
+            }
+        }
+        return report.toString();
+    }
+
+    // Method to pick the groups with the most members, largest first
+    private static List<GroupRegistry.Entry<?>> largestGroups() {
+        Comparator<GroupRegistry.Entry<?>> byMembers = Comparator.comparingInt(entry -> entry.members().size());
+        // Keep only the current top few while walking every group, smallest of them at the head
+        PriorityQueue<GroupRegistry.Entry<?>> largest = new PriorityQueue<>(REPORTED_GROUPS + 1, byMembers);
+        groups.forEach(entry -> {
+            largest.add(entry);
+            if (largest.size() > REPORTED_GROUPS) {
+                largest.poll();
+            }
+        });
+        List<GroupRegistry.Entry<?>> sorted = new ArrayList<>(largest);
+        sorted.sort(byMembers.reversed());
+        return sorted;
+    }
+
+    private static Map<String, Integer> groupMemberCounts() {
+        Map<String, Integer> counts = new TreeMap<>();
+        groups.forEach(entry -> counts.put(entry.group().getId(), entry.members().size()));
+        return counts;
+    }
+
+    private static Map<String, Integer> groupHistorySizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        groups.forEach(entry -> sizes.put(entry.group().getId(), entry.history().size()));
+        return sizes;
+    }
+
+    private static Map<String, Double> commandLatencyMicros(double percentile) {
+        Map<String, Double> latencies = new LinkedHashMap<>();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            latencies.put(COMMANDS[i].text(), micros(commandLatency[i].valueAtPercentile(percentile)));
+        }
+        return latencies;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    // Management interface published as bulletinboard:type=Server
+    public interface BoardMXBean {
+        int getConnectedClients();
+
+        int getGroupCount();
+
+        Map<String, Integer> getGroupMemberCounts();
+
+        Map<String, Integer> getGroupHistorySizes();
+
+        Map<String, Long> getCommandCounts();
+
+        Map<String, Double> getCommandLatencyP50Micros();
+
+        Map<String, Double> getCommandLatencyP99Micros();
+
+        Map<String, Long> getCommandThrottledCounts();
+
+        long getBroadcasts();
+
+        long getDeliveries();
+
+        long getFanOutP99();
+
+        long getFanOutMax();
+
+        long getOutboundBytesPerSecond();
+
+        long getOutboundQueuedBytes();
+
+        long getOutboundDroppedFrames();
+
+        long getHistoryResidentBytes();
+
+        String report();
+    }
+
+    private static final class Board implements BoardMXBean {
+        @Override
+        public int getConnectedClients() {
+            return connectedClients.getAsInt();
+        }
+
+        @Override
+        public int getGroupCount() {
+            return groups.size();
+        }
+
+        @Override
+        public Map<String, Integer> getGroupMemberCounts() {
+            return groupMemberCounts();
+        }
+
+        @Override
+        public Map<String, Integer> getGroupHistorySizes() {
+            return groupHistorySizes();
+        }
+
+        @Override
+        public Map<String, Long> getCommandCounts() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (int i = 0; i < COMMANDS.length; i++) {
+                counts.put(COMMANDS[i].text(), commandLatency[i].count());
+            }
+            return counts;
+        }
+
+        @Override
+        public Map<String, Double> getCommandLatencyP50Micros() {
+            return commandLatencyMicros(50);
+        }
+
+        @Override
+        public Map<String, Double> getCommandLatencyP99Micros() {
+            return commandLatencyMicros(99);
+        }
+
+        @Override
+        public Map<String, Long> getCommandThrottledCounts() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (int i = 0; i < COMMANDS.length; i++) {
+                counts.put(COMMANDS[i].text(), commandThrottled[i].sum());
+            }
+            return counts;
+        }
+
+        @Override
+        public long getBroadcasts() {
+            return fanOut.count();
+        }
+
+        @Override
+        public long getDeliveries() {
+            return deliveries.sum();
+        }
+
+        @Override
+        public long getFanOutP99() {
+            return fanOut.valueAtPercentile(99);
+        }
+
+        @Override
+        public long getFanOutMax() {
+            return fanOut.max();
+        }
+
+        @Override
+        public long getOutboundBytesPerSecond() {
+            return outboundBytesPerSecond;
+        }
+
+        @Override
+        public long getOutboundQueuedBytes() {
+            return OutboundQueue.totalQueuedBytes();
+        }
+
+        @Override
+        public long getOutboundDroppedFrames() {
+            return OutboundQueue.totalDroppedFrames();
+        }
+
+        @Override
+        public long getHistoryResidentBytes() {
+            return MessageHistory.totalResidentBytes();
+        }
+
+        @Override
+        public String report() {
+            return ServerMetrics.report();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Helper type: server-issued session tokens that let a client pick up where it left off after its connection drops
+// A dropped session is parked for a grace period, keeping its group memberships and the newest message ID of
+// each group at the time; resuming within the period hands both to the new connection, letting it lapse
+// drops the user from their groups as a normal disconnect would
+// C is the type of a connected client (Server.ClientHandler)
+public class Sessions<C> {
+    private static final SecureRandom random = new SecureRandom();
+    // Server-wide counters for %stats
+    private static final LongAdder parkedCount = new LongAdder();
+    private static final LongAdder resumedCount = new LongAdder();
+    private static final LongAdder expiredCount = new LongAdder();
+    // One thread ends every session whose grace period runs out
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The client a token belongs to, and while it is parked, how far it had got in each of its groups
+    public static final class Session<C> {
+        private final C client;
+        private final Map<String, Integer> delivered;
+
+        Session(C client, Map<String, Integer> delivered) {
+            this.client = client;
+            this.delivered = delivered;
+        }
+
+        public C client() {
+            return client;
+        }
+
+        // Group ID to how many of the group's messages, in history order, the client had been sent;
+        // null if the client was still connected
+        public Map<String, Integer> delivered() {
+            return delivered;
+        }
+    }
+
+    private final long graceMillis;
+    private final ConcurrentHashMap<String, Session<C>> sessions = new ConcurrentHashMap<>();
+
+    // A grace period of 0 turns sessions off: no tokens are handed out and every drop is final
+    public Sessions(long graceMillis) {
+        this.graceMillis = graceMillis;
+    }
+
+    public boolean isEnabled() {
+        return graceMillis > 0;
+    }
+
+    public long graceSeconds() {
+        return graceMillis / 1000;
+    }
+
+    // Method to start a session for a newly registered client and return its token
+    public String open(C client) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session<>(client, null));
+        return token;
+    }
+
+    // Method to keep a dropped client's session for the grace period; expire runs if nobody resumes it by then
+    // Returns false if another connection has already taken the session over
+    public boolean park(String token, C client, Map<String, Integer> delivered, Consumer<C> expire) {
+        Session<C> parked = new Session<>(client, delivered);
+        Session<C> current = sessions.computeIfPresent(token, (t, session) -> session.client == client ? parked : session);
+        if (current != parked) {
+            return false;
+        }
+        parkedCount.increment();
+        timer.schedule(() -> {
+            if (sessions.remove(token, parked)) {
+                expiredCount.increment();
+                expire.accept(client);
+            }
+        }, graceMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    // Method to hand a session to a new connection, returning what it had, or null if the token is unknown or expired
+    // A session whose old connection has not noticed the drop yet is taken over all the same
+    public Session<C> resume(String token, C client) {
+        Session<C> taken = new Session<>(client, null);
+        while (true) {
+            Session<C> previous = sessions.get(token);
+            if (previous == null) {
+                return null;
+            }
+            // Racing the expiry timer or another resume; whoever replaces it first wins
+            if (sessions.replace(token, previous, taken)) {
+                resumedCount.increment();
+                return previous;
+            }
+        }
+    }
+
+    // Method to end a client's session for good; returns false if another connection has taken it over
+    public boolean close(String token, C client) {
+        if (token == null) {
+            return true;
+        }
+        Session<C> current = sessions.computeIfPresent(token, (t, session) -> session.client == client ? null : session);
+        return current == null;
+    }
+
+    public static long parked() {
+        return parkedCount.sum();
+    }
+
+    public static long resumed() {
+        return resumedCount.sum();
+    }
+
+    public static long expired() {
+        return expiredCount.sum();
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+// Blocking engine: every client gets its own thread parked in readLine()
+// With a virtual thread factory the parked threads cost a few hundred bytes instead of a full stack
+public class ThreadedEngine implements ConnectionEngine {
+    private final String name;
+    private final ThreadFactory threadFactory;
+    // Runs outbound writes so a slow socket blocks a writer instead of whoever produced the output
+    private final Executor writers;
+
+    public ThreadedEngine(String name, ThreadFactory threadFactory, Executor writers) {
+        this.name = name;
+        this.threadFactory = threadFactory;
+        this.writers = writers;
+    }
+
+    @Override
+    public void serve(int port, SessionFactory factory) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Bulletin Board Server is running on port " + port + " (" + name + " engine)");
+
+            // Infinite loop to continuously accept client connections
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                // Start a new thread for each client to handle concurrent connections
+                threadFactory.newThread(() -> handle(clientSocket, factory)).start();
+            }
+        }
+    }
+
+    // Method to pump one client's input lines into its session until the socket closes
+    private void handle(Socket clientSocket, SessionFactory factory) {
+        Session session = null;
+        try {
+            // Set up input and output streams for communication
+            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
+            session = factory.create(new SocketTransport(clientSocket, out));
+            session.onOpen();
+
+            String inputLine;
+            while ((inputLine = in.readLine()) != null) {
+                session.onLine(inputLine);
+            }
+        } catch (IOException e) {
+            // A socket closed by %exit is a normal disconnect, not an error
+            if (!clientSocket.isClosed()) {
+                e.printStackTrace();
+            }
+        } finally {
+            // Cleanup when client disconnects
+            if (session != null) {
+                session.onClose();
+            }
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing socket: " + e.getMessage());
+            }
+        }
+    }
+
+    // Transport over a blocking socket
+    private final class SocketTransport implements Transport {
+        private final Socket socket;
+        private final OutputStream out;
+
+        SocketTransport(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        @Override
+        public OutputStream output() {
+            return out;
+        }
+
+        @Override
+        public Executor writerExecutor() {
+            return writers;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
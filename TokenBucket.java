@@ -0,0 +1,31 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Helper type: token bucket that refills at a steady rate up to a burst size
+// The whole state is the time at which the bucket will be full again, so taking a token is a single
+// compare-and-set and a bucket shared by several connections needs no lock
+public final class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    // The bucket is full from this time on; every token taken moves it nanosPerToken later
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    public TokenBucket(double perSecond, int burst) {
+        nanosPerToken = (long) (1_000_000_000L / perSecond);
+        burstNanos = nanosPerToken * Math.max(1, burst);
+    }
+
+    // Method to take one token; returns 0 if there was one, otherwise how many nanoseconds until there is
+    public long take(long now) {
+        while (true) {
+            long full = fullAt.get();
+            long next = Math.max(full, now) + nanosPerToken;
+            long wait = next - now - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+// Helper type: drives Server.ClientHandler in-process for the JMH benchmarks
+// Every client writes through a transport that throws its output away on the calling thread
+public class ServerBenchHarness implements bench.ServerHarness {
+    private final Server.ClientHandler client;
+    private final Message sample;
+
+    public ServerBenchHarness() {
+        // Benchmarks run commands in a tight loop, which the rate limits would refuse
+        Server.rateLimits = RateLimits.NONE;
+        client = new Server.ClientHandler(new DiscardingTransport());
+        client.onOpen();
+        client.onLine("bench");
+        sample = new Message("bench", "subject", "content of the sample message", client.findGroup("0"));
+    }
+
+    @Override
+    public void addSubscribers(String groupId, int count) {
+        for (int i = 0; i < count; i++) {
+            Server.groupRegistry.get(groupId).members().add(new Server.ClientHandler(new DiscardingTransport()));
+        }
+    }
+
+    @Override
+    public void processCommand(String command) {
+        client.processCommand(command);
+    }
+
+    @Override
+    public void post(String groupId, String subject, String content) {
+        client.handlePost(subject, content, client.findGroup(groupId));
+    }
+
+    @Override
+    public Object outboundQueues(int count) {
+        OutboundQueue[] queues = new OutboundQueue[count];
+        for (int i = 0; i < count; i++) {
+            queues[i] = new OutboundQueue(new DiscardingTransport(), 1 << 20, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        }
+        return queues;
+    }
+
+    @Override
+    public void broadcastSample(Object queues, boolean encodeOnce) {
+        if (encodeOnce) {
+            byte[] frame = OutboundQueue.encodeLine(sample.toString());
+            for (OutboundQueue queue : (OutboundQueue[]) queues) {
+                queue.send(frame);
+            }
+        } else {
+            for (OutboundQueue queue : (OutboundQueue[]) queues) {
+                queue.send(OutboundQueue.encodeLine(sample.toString()));
+            }
+        }
+    }
+
+    @Override
+    public int[] fillHistory(String groupId, int count) {
+        Group group = client.findGroup(groupId);
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            client.handlePost("subject " + i, "content " + i, group);
+            last = Server.groupRegistry.get(groupId).history().last(1).get(0).getId();
+            if (first < 0) {
+                first = last;
+            }
+        }
+        return new int[] { first, last };
+    }
+
+    @Override
+    public void clearHistory(String groupId) {
+        // Put the group back with a fresh history, keeping its members
+        GroupRegistry.Entry<Server.ClientHandler> old = Server.groupRegistry.remove(groupId);
+        old.history().release();
+        Server.groupRegistry.add(old.group()).members().addAll(old.members());
+    }
+
+    @Override
+    public String[] createGroups(int count) {
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = Server.groupRegistry.create(groupName(i), "bench").group().getId();
+        }
+        return ids;
+    }
+
+    @Override
+    public String groupName(int index) {
+        return "Bench Group " + index;
+    }
+
+    @Override
+    public Object buildSearchIndex(String[] subjects, String[] contents) {
+        SearchIndex index = new SearchIndex();
+        for (int i = 0; i < subjects.length; i++) {
+            index.add(i, subjects[i], contents[i]);
+        }
+        return index;
+    }
+
+    @Override
+    public void indexPost(Object index, int slot, String subject, String content) {
+        ((SearchIndex) index).add(slot, subject, content);
+    }
+
+    @Override
+    public int search(Object index, String query, int limit) {
+        return ((SearchIndex) index).search(query, limit, Integer.MAX_VALUE).length;
+    }
+
+    @Override
+    public void configurePresence(int windowMillis) {
+        Server.presence = Server.newPresence(windowMillis, 0);
+    }
+
+    @Override
+    public void joinStorm(String groupId, int count) {
+        Group group = client.findGroup(groupId);
+        for (int i = 0; i < count; i++) {
+            Server.presence.joined("storm-" + i, group);
+        }
+        Server.presence.flush();
+    }
+
+    @Override
+    public void sendMessageContent(int messageId, String groupId) {
+        client.sendMessageContent(messageId, client.findGroup(groupId));
+    }
+
+    @Override
+    public Object findGroup(String groupId) {
+        return client.findGroup(groupId);
+    }
+
+    @Override
+    public String formatMessage() {
+        return sample.toString();
+    }
+
+    // Transport that writes inline and discards the bytes, so queues never back up
+    private static final class DiscardingTransport implements ConnectionEngine.Transport {
+        @Override
+        public OutputStream output() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public Executor writerExecutor() {
+            return Runnable::run;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Per-command costs that do not depend on how many clients are connected
+// Each benchmark only takes the state it needs, so JMH only varies the parameters that matter to it
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+    @State(Scope.Thread)
+    public static class Board {
+        ServerHarness harness;
+
+        @Setup
+        public void setUp() {
+            harness = ServerHarness.create();
+            harness.post("0", "subject", "message 1 for %message");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Commands {
+        // Read-only commands, so the board looks the same on every invocation
+        @Param({ "%groups", "%message 1", "%groupusers 0", "%notacommand" })
+        public String command;
+    }
+
+    @State(Scope.Thread)
+    public static class GroupIds {
+        // Exact ID, exact name, case-insensitive name and a miss
+        @Param({ "3", "Private Group 5", "private group 5", "missing" })
+        public String groupId;
+    }
+
+    @Benchmark
+    public void processCommand(Board board, Commands commands) {
+        board.harness.processCommand(commands.command);
+    }
+
+    @Benchmark
+    public Object findGroup(Board board, GroupIds groupIds) {
+        return board.harness.findGroup(groupIds.groupId);
+    }
+
+    @Benchmark
+    public String messageToString(Board board) {
+        return board.harness.formatMessage();
+    }
+}
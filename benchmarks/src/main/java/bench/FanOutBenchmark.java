@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// handlePost plus broadcastMessage to every member of the public group, and the cost of the fan-out alone
+// when the line is encoded for each recipient versus once for all of them (compare gc.alloc.rate.norm under -prof gc)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({ "10", "1000", "10000" })
+    public int subscribers;
+
+    private ServerHarness harness;
+    private Object queues;
+
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.create();
+        harness.addSubscribers("0", subscribers);
+        queues = harness.outboundQueues(subscribers);
+    }
+
+    // Start every iteration with an empty history so the heap does not grow across the run
+    @Setup(Level.Iteration)
+    public void clearHistory() {
+        harness.clearHistory("0");
+    }
+
+    @Benchmark
+    public void postAndBroadcast() {
+        harness.post("0", "subject", "a post every subscriber receives");
+    }
+
+    @Benchmark
+    public void encodePerRecipient() {
+        harness.broadcastSample(queues, false);
+    }
+
+    @Benchmark
+    public void encodeOnce() {
+        harness.broadcastSample(queues, true);
+    }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Heap a group's history retains per posted message, measured after a full GC
+// Read the bytesPerMessage column; the time column only shows how long posting the batch took
+// JMH adds this counter up over iterations, so there is one measured iteration
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class FootprintBenchmark {
+    // A typical post body, about 100 characters
+    private static final String BODY = "has anyone else noticed the build getting slower since last week? it takes twice as long on my laptop";
+
+    @Param({ "1000000" })
+    public int messages;
+
+    private ServerHarness harness;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public double bytesPerMessage;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = ServerHarness.create();
+    }
+
+    @Setup(Level.Iteration)
+    public void emptyHistory() {
+        harness.clearHistory("1");
+    }
+
+    @Benchmark
+    public void post(Footprint footprint) {
+        long before = usedHeap();
+        for (int i = 0; i < messages; i++) {
+            // Fresh strings for every post, as if each had just been read off a socket
+            harness.post("1", "subject " + i, i + " " + BODY);
+        }
+        footprint.bytesPerMessage = (double) (usedHeap() - before) / messages;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
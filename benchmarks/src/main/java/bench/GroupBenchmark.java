@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Group lookup, %groups listing and group creation with different numbers of user-created groups
+// on top of the six built-in ones
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupBenchmark {
+    @Param({ "0", "1000", "100000" })
+    public int groups;
+
+    private ServerHarness harness;
+    // Groups to look up, spread over every group and visited in turn
+    private String[] ids;
+    private String[] names;
+    private int next;
+    private String lastPage;
+
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.create();
+        String[] created = harness.createGroups(groups);
+        ids = new String[1024];
+        names = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            // With no created groups, cycle through the built-in ones
+            int index = (int) ((long) Math.max(0, groups - 1) * i / (ids.length - 1));
+            ids[i] = groups == 0 ? String.valueOf(i % 6) : created[index];
+            names[i] = groups == 0 ? "Private Group " + (1 + i % 5) : harness.groupName(index);
+        }
+        lastPage = "%groups " + ((groups + 6 + 49) / 50);
+    }
+
+    @Benchmark
+    public Object findGroupById() {
+        return harness.findGroup(ids[next++ & (ids.length - 1)]);
+    }
+
+    @Benchmark
+    public Object findGroupByName() {
+        return harness.findGroup(names[next++ & (names.length - 1)]);
+    }
+
+    @Benchmark
+    public void listFirstPage() {
+        harness.processCommand("%groups");
+    }
+
+    // Paging walks the listing from the start, so this is the slowest page
+    @Benchmark
+    public void listLastPage() {
+        harness.processCommand(lastPage);
+    }
+
+    @Benchmark
+    public void createAndDelete() {
+        harness.processCommand("%groupcreate Bench Churn");
+        harness.processCommand("%groupdelete Bench Churn");
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// sendMessageContent (%message / %groupmessage) and %history pages against histories of different sizes
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+    @Param({ "1000", "100000", "1000000" })
+    public int historySize;
+
+    private ServerHarness harness;
+    // Message IDs to look up, spread over the whole history and visited in turn
+    private int[] ids;
+    // %history commands for a 50-message page ending at each of those IDs
+    private String[] historyCommands;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.create();
+        int[] range = harness.fillHistory("1", historySize);
+        ids = new int[1024];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = range[0] + (int) ((long) (range[1] - range[0]) * i / (ids.length - 1));
+        }
+        historyCommands = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            historyCommands[i] = "%history 1 " + ids[i] + " 50";
+        }
+    }
+
+    @Benchmark
+    public void sendMessageContent() {
+        harness.sendMessageContent(ids[next++ & (ids.length - 1)], "1");
+    }
+
+    @Benchmark
+    public void historyPage() {
+        harness.processCommand(historyCommands[next++ & (historyCommands.length - 1)]);
+    }
+}
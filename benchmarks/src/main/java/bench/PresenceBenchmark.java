@@ -0,0 +1,37 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// A storm of 1000 users joining a group with many idle members, as when a node restarts and everyone reconnects
+// windowMs 0 sends one notice per join to every member; otherwise each member gets one summary
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PresenceBenchmark {
+    private static final int JOINS = 1000;
+
+    @Param({ "1000", "10000" })
+    public int subscribers;
+
+    @Param({ "0", "250" })
+    public int windowMs;
+
+    private ServerHarness harness;
+
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.create();
+        harness.configurePresence(windowMs);
+        harness.addSubscribers("0", subscribers);
+    }
+
+    @Benchmark
+    public void joinStorm() {
+        harness.joinStorm("0", JOINS);
+    }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// %search: building the index and querying it over histories of different sizes
+// Posts are drawn from a 50000-word vocabulary with a few very common words and a long tail of rare ones
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SearchBenchmark {
+    private static final int VOCABULARY = 50000;
+
+    @Param({ "100000", "1000000" })
+    public int posts;
+
+    private ServerHarness harness;
+    private String[] subjects;
+    private String[] contents;
+    private Object index;
+
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.create();
+        Random random = new Random(42);
+        subjects = new String[posts];
+        contents = new String[posts];
+        for (int i = 0; i < posts; i++) {
+            subjects[i] = words(random, 3);
+            contents[i] = words(random, 12);
+            harness.post("1", subjects[i], contents[i]);
+        }
+        index = harness.buildSearchIndex(subjects, contents);
+    }
+
+    // Word k turns up with probability roughly proportional to 1 / k
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int word = (int) Math.exp(random.nextDouble() * Math.log(VOCABULARY));
+            text.append(i == 0 ? "" : " ").append("word").append(word);
+        }
+        return text.toString();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public Object buildIndex() {
+        return harness.buildSearchIndex(subjects, contents);
+    }
+
+    @Benchmark
+    public int commonWord() {
+        return harness.search(index, "word1", 20);
+    }
+
+    @Benchmark
+    public int twoCommonWords() {
+        return harness.search(index, "word1 word2", 20);
+    }
+
+    @Benchmark
+    public int rareWord() {
+        return harness.search(index, "word40000", 20);
+    }
+
+    @Benchmark
+    public int rareAndCommonWords() {
+        return harness.search(index, "word30000 word1", 20);
+    }
+
+    @Benchmark
+    public int noMatch() {
+        return harness.search(index, "nosuchword", 20);
+    }
+
+    // The whole command, including formatting and queueing the 20 results
+    @Benchmark
+    public void searchCommand() {
+        harness.processCommand("%search 1 word1 word2");
+    }
+}
@@ -0,0 +1,72 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.*;
+
+// %search and posting at the same time: several posters index new messages into one group's index
+// while a reader keeps searching it, the way a busy group sees it
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SearchContentionBenchmark {
+    private static final int VOCABULARY = 50000;
+    private static final int INITIAL_POSTS = 100000;
+    private static final int SAMPLE_POSTS = 4096;
+
+    private ServerHarness harness;
+    private Object index;
+    private String[] subjects;
+    private String[] contents;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.create();
+        Random random = new Random(42);
+        String[] initialSubjects = new String[INITIAL_POSTS];
+        String[] initialContents = new String[INITIAL_POSTS];
+        for (int i = 0; i < INITIAL_POSTS; i++) {
+            initialSubjects[i] = words(random, 3);
+            initialContents[i] = words(random, 12);
+        }
+        index = harness.buildSearchIndex(initialSubjects, initialContents);
+        nextSlot.set(INITIAL_POSTS);
+        subjects = new String[SAMPLE_POSTS];
+        contents = new String[SAMPLE_POSTS];
+        for (int i = 0; i < SAMPLE_POSTS; i++) {
+            subjects[i] = words(random, 3);
+            contents[i] = words(random, 12);
+        }
+    }
+
+    // Word k turns up with probability roughly proportional to 1 / k
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int word = (int) Math.exp(random.nextDouble() * Math.log(VOCABULARY));
+            text.append(i == 0 ? "" : " ").append("word").append(word);
+        }
+        return text.toString();
+    }
+
+    @Benchmark
+    @Group("postAndSearch")
+    @GroupThreads(3)
+    public void post() {
+        int slot = nextSlot.getAndIncrement();
+        harness.indexPost(index, slot, subjects[slot % SAMPLE_POSTS], contents[slot % SAMPLE_POSTS]);
+    }
+
+    @Benchmark
+    @Group("postAndSearch")
+    @GroupThreads(1)
+    public int search() {
+        return harness.search(index, "word1 word2", 20);
+    }
+}
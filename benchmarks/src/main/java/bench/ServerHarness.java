@@ -0,0 +1,65 @@
+package bench;
+
+// Bridge to the server's classes, which live in the unnamed package that JMH benchmarks cannot use
+// Implemented by ServerBenchHarness, which sits in the unnamed package next to Server
+public interface ServerHarness {
+    // Method to load the harness; every fork is a fresh JVM, so each one gets a fresh board
+    static ServerHarness create() {
+        try {
+            return (ServerHarness) Class.forName("ServerBenchHarness").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("ServerBenchHarness is missing from the classpath", e);
+        }
+    }
+
+    // Method to add idle members to a group without the join notices a real join would fan out
+    void addSubscribers(String groupId, int count);
+
+    // Method to run one command line as the harness's own registered client
+    void processCommand(String command);
+
+    // Method to post to a group as the harness's client, fanning out to every member
+    void post(String groupId, String subject, String content);
+
+    // Method to make count stand-alone outbound queues that throw their output away
+    Object outboundQueues(int count);
+
+    // Method to send the sample message to every queue from outboundQueues, either formatted and encoded
+    // for each recipient (the old fan-out) or encoded once and the frame shared
+    void broadcastSample(Object queues, boolean encodeOnce);
+
+    // Method to post count messages to a group, returning the first and last message IDs
+    int[] fillHistory(String groupId, int count);
+
+    // Method to empty a group's history so long posting runs do not fill the heap
+    void clearHistory(String groupId);
+
+    // Method to create count groups owned by the harness's client, returning their IDs in creation order
+    String[] createGroups(int count);
+
+    // Name of the group createGroups made with the given index
+    String groupName(int index);
+
+    // Method to build a stand-alone search index over posts given as parallel subject and content arrays
+    Object buildSearchIndex(String[] subjects, String[] contents);
+
+    // Method to index one more post in an index from buildSearchIndex, under the given history slot
+    void indexPost(Object index, int slot, String subject, String content);
+
+    // Method to query an index from buildSearchIndex, returning the number of hits
+    int search(Object index, String query, int limit);
+
+    // Method to replace the server's presence notices with ones gathered over the given window (0 sends each at once)
+    void configurePresence(int windowMillis);
+
+    // Method to announce count users joining a group, then send whatever summaries are still waiting
+    void joinStorm(String groupId, int count);
+
+    // Method to look a message up by ID the way %groupmessage does
+    void sendMessageContent(int messageId, String groupId);
+
+    Object findGroup(String groupId);
+
+    // Method to format a fixed sample message
+    String formatMessage();
+}
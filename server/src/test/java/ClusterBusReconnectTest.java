@@ -0,0 +1,126 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+// Two ClusterBus nodes in one JVM: node 0 creates a group and posts to it while node 1 is down, then node 1
+// starts and the link comes up; every post, including the ones to the new group, must reach node 1
+public class ClusterBusReconnectTest {
+    private static final long WAIT_MILLIS = 10_000;
+
+    @Test
+    public void postsToAGroupCreatedWhileTheLinkWasDownArrive() throws Exception {
+        int port0 = freePort();
+        int port1 = freePort();
+
+        Group publicGroup = new Group("0", "Public Group");
+        Group dogs = new Group("6", "Dogs", "alice");
+        List<Message> sent = List.of(
+            new Message(1, "alice", "woof", "first dog post", LocalDateTime.now(), dogs),
+            new Message(3, "alice", "hello", "a public post", LocalDateTime.now(), publicGroup),
+            new Message(5, "alice", "woof", "second dog post", LocalDateTime.now(), dogs));
+        Node node0 = new Node(publicGroup, sent, List.of(dogs));
+        new ClusterBus("node-0", port0, List.of("localhost:" + port1), node0::group, node0).start();
+
+        Node node1 = new Node(publicGroup, List.of(), List.of());
+        new ClusterBus("node-1", port1, List.of("localhost:" + port0), node1::group, node1).start();
+
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (node1.received.size() < sent.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertNotNull(node1.group("6"), "group created while the link was down is missing");
+        List<String> received = new ArrayList<>();
+        for (Message message : node1.received) {
+            received.add(message.getId() + " " + message.getGroup().getId());
+        }
+        assertEquals(List.of("1 6", "3 0", "5 6"), received);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Just enough of a server to answer the bus: a group table, the node's own posts and what arrived
+    private static final class Node implements ClusterBus.Listener {
+        private final Map<String, Group> groups = new ConcurrentHashMap<>();
+        private final List<Message> ownPosts;
+        private final List<Group> created;
+        private final List<Message> received = new CopyOnWriteArrayList<>();
+
+        Node(Group publicGroup, List<Message> ownPosts, List<Group> created) {
+            this.ownPosts = ownPosts;
+            this.created = created;
+            groups.put(publicGroup.getId(), publicGroup);
+            for (Group group : created) {
+                groups.put(group.getId(), group);
+            }
+        }
+
+        Group group(String id) {
+            return groups.get(id);
+        }
+
+        @Override
+        public void onRemotePost(Message message) {
+            received.add(message);
+        }
+
+        @Override
+        public void onRemoteJoin(String username, Group group, boolean announce) {
+        }
+
+        @Override
+        public void onRemoteLeave(String username, Group group) {
+        }
+
+        @Override
+        public void onRemoteDisconnect(String username) {
+        }
+
+        @Override
+        public boolean onRemoteGroupCreated(Group group) {
+            return groups.putIfAbsent(group.getId(), group) == null;
+        }
+
+        @Override
+        public void onRemoteGroupDeleted(Group group, String username) {
+            groups.remove(group.getId());
+        }
+
+        @Override
+        public Map<String, List<String>> localMembership() {
+            return Map.of("alice", List.of("0", "6"));
+        }
+
+        @Override
+        public List<Group> createdGroups() {
+            return created;
+        }
+
+        @Override
+        public int newestPostFrom(int idResidue) {
+            int newest = 0;
+            for (Message message : received) {
+                newest = Math.max(newest, message.getId());
+            }
+            return newest;
+        }
+
+        @Override
+        public void forEachOwnPostAfter(int afterId, Consumer<Message> sink) {
+            for (Message message : ownPosts) {
+                if (message.getId() > afterId) {
+                    sink.accept(message);
+                }
+            }
+        }
+    }
+}
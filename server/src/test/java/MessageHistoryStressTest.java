@@ -0,0 +1,109 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.jupiter.api.Test;
+
+// Stress test for MessageHistory: many threads append to one group while others read it
+// Readers check that every slot below the published tail is filled and findable by ID; at the end every
+// message must be there exactly once, and each writer's messages in the order it posted them
+public class MessageHistoryStressTest {
+    private static final int READERS = 4;
+    private static final int APPENDS_PER_WRITER = 50_000;
+
+    @Test
+    public void oneWriter() throws Exception {
+        stress(1);
+    }
+
+    @Test
+    public void manyWriters() throws Exception {
+        stress(8);
+    }
+
+    @Test
+    public void moreWritersThanCores() throws Exception {
+        stress(Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    private static void stress(int writers) throws Exception {
+        Group group = new Group("stress", "Stress Group");
+        MessageHistory history = new MessageHistory(group);
+        AtomicBoolean done = new AtomicBoolean();
+        ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(writers + READERS);
+        List<Future<?>> tasks = new ArrayList<>();
+
+        // Readers walk the newest published slots over and over while the writers run
+        for (int r = 0; r < READERS; r++) {
+            tasks.add(pool.submit(() -> {
+                while (!done.get()) {
+                    int end = history.size();
+                    for (int slot = Math.max(0, end - 64); slot < end; slot++) {
+                        int id = history.idAt(slot);
+                        if (id == 0) {
+                            problems.add("slot " + slot + " below the tail " + end + " was not filled");
+                            continue;
+                        }
+                        Message byId = history.get(id);
+                        if (byId == null || byId.getId() != id) {
+                            problems.add("message " + id + " in slot " + slot + " was not found by ID");
+                        }
+                    }
+                    for (Message message : history.last(16)) {
+                        if (message == null || message.getId() == 0) {
+                            problems.add("last() returned an unfilled message");
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> writing = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            String sender = "writer-" + w;
+            writing.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < APPENDS_PER_WRITER; i++) {
+                    history.add(new Message(sender, "subject " + i, "content " + i, group));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> writer : writing) {
+            writer.get(2, TimeUnit.MINUTES);
+        }
+        done.set(true);
+        for (Future<?> task : tasks) {
+            task.get(1, TimeUnit.MINUTES);
+        }
+        pool.shutdown();
+
+        assertTrue(problems.isEmpty(), () -> problems.size() + " problems, first: " + problems.peek());
+        int total = writers * APPENDS_PER_WRITER;
+        assertEquals(total, history.size());
+
+        Set<Integer> ids = new HashSet<>();
+        int[] perWriter = new int[writers];
+        for (int slot = 0; slot < total; slot++) {
+            int id = history.idAt(slot);
+            assertNotEquals(0, id, "hole at slot " + slot);
+            assertTrue(ids.add(id), "message " + id + " is in the history twice");
+            Message message = history.get(id);
+            assertNotNull(message, "message " + id + " is not indexed");
+            assertEquals(id, message.getId());
+            assertEquals(group, message.getGroup());
+            // Each writer's messages keep the order it posted them in
+            int writer = Integer.parseInt(message.getSender().substring("writer-".length()));
+            assertEquals("subject " + perWriter[writer], message.getSubject(), "order of writer-" + writer);
+            perWriter[writer]++;
+        }
+        for (int w = 0; w < writers; w++) {
+            assertEquals(APPENDS_PER_WRITER, perWriter[w], "messages kept from writer-" + w);
+        }
+    }
+}
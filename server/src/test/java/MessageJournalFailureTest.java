@@ -0,0 +1,124 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A group-commit batch that fails halfway through a record must leave no trace: its posters are told it failed,
+// later posts commit normally, and a restart recovers every committed post and none of the failed batch
+public class MessageJournalFailureTest {
+    private static final Group GROUP = new Group("0", "Public Group");
+    // Posts committed one by one before the failure; the next write is held so the failing batch queues up
+    private static final int BEFORE = 5;
+    private static final int HELD_WRITE = BEFORE + 1;
+    // The failing batch holds three posts and tears the second one
+    private static final int TORN_WRITE = HELD_WRITE + 2;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void failedBatchWithinOneSegment() throws Exception {
+        failBatchThenRecover(1024 * 1024);
+    }
+
+    // Segments this small hold two or three records, so the failing batch rolls over to a new segment first
+    @Test
+    public void failedBatchAcrossASegmentRoll() throws Exception {
+        failBatchThenRecover(200);
+    }
+
+    private void failBatchThenRecover(long segmentBytes) throws Exception {
+        CountDownLatch writerHeld = new CountDownLatch(1);
+        CountDownLatch batchQueued = new CountDownLatch(1);
+        FailingJournal journal = new FailingJournal(directory, segmentBytes, writerHeld, batchQueued);
+        assertEquals(0, journal.recover(id -> GROUP, (message, location) -> { }));
+
+        Map<Integer, Long> committed = new LinkedHashMap<>();
+        for (int i = 0; i < BEFORE; i++) {
+            Message message = post("before " + i);
+            committed.put(message.getId(), journal.append(message).get(5, TimeUnit.SECONDS));
+        }
+
+        // The held write is one batch on its own; everything appended while it waits becomes the next one
+        Message held = post("held");
+        CompletableFuture<Long> heldWrite = journal.append(held);
+        assertTrue(writerHeld.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<Long>> failing = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            failing.add(journal.append(post("failing " + i)));
+        }
+        batchQueued.countDown();
+        committed.put(held.getId(), heldWrite.get(5, TimeUnit.SECONDS));
+        for (CompletableFuture<Long> write : failing) {
+            ExecutionException error = assertThrows(ExecutionException.class, () -> write.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IOException.class, error.getCause());
+        }
+
+        // Reopened before anything else is written, nothing of the failed batch may be left on disk
+        assertEquals(committed, recoverAll(segmentBytes));
+
+        for (int i = 0; i < 5; i++) {
+            Message message = post("after " + i);
+            committed.put(message.getId(), journal.append(message).get(5, TimeUnit.SECONDS));
+        }
+        for (Map.Entry<Integer, Long> entry : committed.entrySet()) {
+            assertEquals(entry.getKey(), journal.read(entry.getValue(), id -> GROUP).getId());
+        }
+
+        // A restart finds exactly the committed posts, in order and where append said they were
+        assertEquals(committed, recoverAll(segmentBytes));
+    }
+
+    private Map<Integer, Long> recoverAll(long segmentBytes) throws IOException {
+        Map<Integer, Long> recovered = new LinkedHashMap<>();
+        new MessageJournal(directory, segmentBytes)
+            .recover(id -> GROUP, (message, location) -> recovered.put(message.getId(), location));
+        return recovered;
+    }
+
+    private static Message post(String content) {
+        return new Message("alice", "subject", content, GROUP);
+    }
+
+    // Holds one write until the test has queued the next batch, then writes half of a later record and fails
+    private static final class FailingJournal extends MessageJournal {
+        private final AtomicInteger writes = new AtomicInteger();
+        private final CountDownLatch writerHeld;
+        private final CountDownLatch batchQueued;
+
+        FailingJournal(Path directory, long segmentBytes, CountDownLatch writerHeld, CountDownLatch batchQueued) {
+            super(directory, segmentBytes);
+            this.writerHeld = writerHeld;
+            this.batchQueued = batchQueued;
+        }
+
+        @Override
+        void writeRecord(FileChannel segment, ByteBuffer data) throws IOException {
+            int write = writes.incrementAndGet();
+            if (write == HELD_WRITE) {
+                writerHeld.countDown();
+                try {
+                    batchQueued.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (write == TORN_WRITE) {
+                ByteBuffer half = data.duplicate();
+                half.limit(half.position() + half.remaining() / 2);
+                while (half.hasRemaining()) {
+                    segment.write(half);
+                }
+                throw new IOException("injected failure");
+            }
+            super.writeRecord(segment, data);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// Consistency test for %search: posters append to several groups while groups are deleted and replaced and a
+// small memory budget keeps evicting old messages; searches run throughout, and at the end every group's search
+// results must be exactly what a linear scan of its history finds, newest first, among the messages still in memory
+public class SearchIndexConsistencyTest {
+    private static final int GROUPS = 4;
+    private static final int WRITERS = 4;
+    private static final int POSTS_PER_WRITER = 5_000;
+    private static final int DELETES = 40;
+    // Small enough that every busy group evicts whole chunks several times over
+    private static final long BUDGET_BYTES = 8 * 1024;
+    // What %search shows, and a limit no group reaches
+    private static final int[] LIMITS = {20, Integer.MAX_VALUE};
+    private static final String[] WORDS = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot"};
+
+    // Journal stand-in: every post is "durable" at its ID, and reading one back is noted so the scan can tell
+    private final Map<Long, Message> disk = new ConcurrentHashMap<>();
+    private final AtomicBoolean wentCold = new AtomicBoolean();
+
+    @AfterEach
+    public void turnTieringOff() {
+        MessageHistory.configureTiering(0, null);
+    }
+
+    @Test
+    public void searchMatchesALinearScanAfterPostsDeletesAndEvictions() throws Exception {
+        MessageHistory.configureTiering(BUDGET_BYTES, new ColdStorage(null, id -> null, 0) {
+            @Override
+            public Message cached(int id) {
+                wentCold.set(true);
+                return null;
+            }
+
+            @Override
+            public Message load(long location) {
+                wentCold.set(true);
+                return disk.get(location);
+            }
+        });
+        GroupRegistry<Object> registry = new GroupRegistry<>();
+        AtomicReferenceArray<String> groupIds = new AtomicReferenceArray<>(GROUPS);
+        for (int g = 0; g < GROUPS; g++) {
+            groupIds.set(g, registry.create("group " + g, "owner").group().getId());
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS + 2);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> writing = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            String sender = "writer-" + w;
+            Random random = new Random(w);
+            writing.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < POSTS_PER_WRITER; i++) {
+                    // A post to a group deleted under it is dropped, as handlePost drops it
+                    GroupRegistry.Entry<Object> entry = registry.get(groupIds.get(random.nextInt(GROUPS)));
+                    if (entry == null) {
+                        continue;
+                    }
+                    Message message = new Message(sender, WORDS[random.nextInt(WORDS.length)] + " " + i,
+                        WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+                            + " from " + sender, entry.group());
+                    disk.put((long) message.getId(), message);
+                    entry.history().add(message, message.getId());
+                }
+                return null;
+            }));
+        }
+
+        // Deletes a group and puts a fresh one in its place, the way %delete and %groupcreate would
+        Future<?> deleting = pool.submit(() -> {
+            start.await();
+            Random random = new Random(-1);
+            for (int d = 0; d < DELETES; d++) {
+                int g = random.nextInt(GROUPS);
+                GroupRegistry.Entry<Object> removed = registry.remove(groupIds.get(g));
+                if (removed != null) {
+                    removed.history().release();
+                }
+                groupIds.set(g, registry.create("group " + g + " take " + d, "owner").group().getId());
+                Thread.sleep(5);
+            }
+            return null;
+        });
+
+        // Searches while everything else runs only see messages of their own group holding every word, newest first
+        Future<?> searching = pool.submit(() -> {
+            start.await();
+            Random random = new Random(-2);
+            while (!done.get()) {
+                GroupRegistry.Entry<Object> entry = registry.get(groupIds.get(random.nextInt(GROUPS)));
+                if (entry == null) {
+                    continue;
+                }
+                String query = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+                int previousSlot = Integer.MAX_VALUE;
+                for (Message message : entry.history().search(query, 20)) {
+                    if (message.getGroup() != entry.group()) {
+                        problems.add("search of " + entry.group().getId() + " returned a message of "
+                            + message.getGroup().getId());
+                    }
+                    if (!termsOf(message).containsAll(SearchIndex.terms(query))) {
+                        problems.add("message " + message.getId() + " does not contain '" + query + "'");
+                    }
+                    int slot = entry.history().slotOf(message.getId());
+                    if (slot >= previousSlot) {
+                        problems.add("search for '" + query + "' was not newest first");
+                    }
+                    previousSlot = slot;
+                }
+            }
+            return null;
+        });
+
+        start.countDown();
+        for (Future<?> writer : writing) {
+            writer.get(2, TimeUnit.MINUTES);
+        }
+        deleting.get(1, TimeUnit.MINUTES);
+        done.set(true);
+        searching.get(1, TimeUnit.MINUTES);
+        pool.shutdown();
+        assertTrue(problems.isEmpty(), () -> problems.size() + " problems, first: " + problems.peek());
+
+        List<String> queries = new ArrayList<>(Arrays.asList(WORDS));
+        for (String first : WORDS) {
+            for (String second : WORDS) {
+                queries.add(first + " " + second);
+            }
+        }
+        queries.add("ALPHA, from writer");
+        queries.add("writer 0");
+        queries.add("nothing posted this");
+        int evicted = 0;
+        for (int g = 0; g < GROUPS; g++) {
+            MessageHistory history = registry.get(groupIds.get(g)).history();
+            for (String query : queries) {
+                for (int limit : LIMITS) {
+                    List<Integer> found = new ArrayList<>();
+                    for (Message message : history.search(query, limit)) {
+                        found.add(message.getId());
+                    }
+                    assertEquals(scan(history, query, limit), found,
+                        "search of group " + g + " for '" + query + "' limited to " + limit);
+                }
+            }
+            if (inMemoryFrom(history) > 0) {
+                evicted++;
+            }
+        }
+        assertTrue(evicted > 0, "the budget never evicted anything, so the test did not cover trimming");
+    }
+
+    // Method to find what a search should return by reading every message still in memory, newest first
+    private List<Integer> scan(MessageHistory history, String query, int limit) {
+        List<String> terms = SearchIndex.terms(query);
+        List<Integer> found = new ArrayList<>();
+        int oldest = inMemoryFrom(history);
+        for (int slot = history.size() - 1; slot >= oldest && found.size() < limit; slot--) {
+            Message message = history.messageAt(slot);
+            if (termsOf(message).containsAll(terms)) {
+                found.add(message.getId());
+            }
+        }
+        return found;
+    }
+
+    // Method to find the oldest slot whose message is still read from memory rather than cold storage
+    private int inMemoryFrom(MessageHistory history) {
+        int slot = history.size();
+        while (slot > 0) {
+            wentCold.set(false);
+            history.messageAt(slot - 1);
+            if (wentCold.get()) {
+                break;
+            }
+            slot--;
+        }
+        return slot;
+    }
+
+    private static Set<String> termsOf(Message message) {
+        Set<String> terms = new HashSet<>(SearchIndex.terms(message.getSubject()));
+        terms.addAll(SearchIndex.terms(message.getContent()));
+        return terms;
+    }
+}